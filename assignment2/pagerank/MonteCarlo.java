@@ -2,7 +2,7 @@ import java.util.*;
 import java.io.*;
 
 public class MonteCarlo {
-    /**  
+    /**
      *   Maximal number of documents. We're assuming here that we
      *   don't have more docs than we can keep in main memory.
      */
@@ -18,23 +18,15 @@ public class MonteCarlo {
      */
     String[] docName = new String[MAX_NUMBER_OF_DOCS];
 
-    /**  
-     *   A memory-efficient representation of the transition matrix.
-     *   The outlinks are represented as a HashMap, whose keys are 
-     *   the numbers of the documents linked from.<p>
-     *
-     *   The value corresponding to key i is a HashMap whose keys are 
-     *   all the numbers of documents j that i links to.<p>
-     *
-     *   If there are no outlinks from i, then the value corresponding 
-     *   key i is null.
-     */
-    HashMap<Integer,HashMap<Integer,Boolean>> link = new HashMap<Integer,HashMap<Integer,Boolean>>();
-
     /**
-     *   The number of outlinks from each node.
+     *   The transition matrix in compressed sparse row form: the
+     *   outlinks of document i are <code>colIdx[rowPtr[i]..rowPtr[i+1])</code>,
+     *   without duplicates. A random walk step is then two array reads,
+     *   whatever the number of outlinks. If there are no outlinks from i,
+     *   <code>rowPtr[i] == rowPtr[i+1]</code>.
      */
-    int[] out = new int[MAX_NUMBER_OF_DOCS];
+    int[] rowPtr;
+    int[] colIdx;
 
     /**
      *   The probability that the surfer will be bored, stop
@@ -42,28 +34,112 @@ public class MonteCarlo {
      */
     final static double BORED = 0.15;
 
+    /**
+     *   Default number of walks per document.
+     */
     final static int M = 1;
 
+    /**
+     *   The estimators (the methods of Avrachenkov et al.).
+     *
+     *   END_POINT_RANDOM_START (MonteCarlo1): N walks from random
+     *   documents; the rank is the fraction of walks ending in the
+     *   document. END_POINT_CYCLIC_START (MonteCarlo2): the same, but
+     *   m walks from every document. COMPLETE_PATH_CYCLIC_START
+     *   (MonteCarlo4): m walks from every document, stopping at dangling
+     *   documents; the rank is the fraction of all visits.
+     *   COMPLETE_PATH_RANDOM_START (MonteCarlo5): the same, but N walks
+     *   from random documents.
+     */
+    enum Estimator {
+        END_POINT_RANDOM_START( 1, true, false ),
+        END_POINT_CYCLIC_START( 2, false, false ),
+        COMPLETE_PATH_CYCLIC_START( 4, false, true ),
+        COMPLETE_PATH_RANDOM_START( 5, true, true );
+
+        /** The number of the method in the assignment. */
+        final int number;
+
+        /** Walks start at random documents (else m walks start at every document). */
+        final boolean randomStart;
+
+        /** Every visit counts (else only the end point of a walk). */
+        final boolean completePath;
+
+        Estimator( int number, boolean randomStart, boolean completePath ) {
+            this.number = number;
+            this.randomStart = randomStart;
+            this.completePath = completePath;
+        }
+
+        static Estimator byNumber( int number ) {
+            for ( Estimator e : values() ) {
+                if ( e.number == number ) {
+                    return e;
+                }
+            }
+            throw new IllegalArgumentException( "No Monte Carlo method " + number );
+        }
+    }
+
+    /**
+     *   Number of walks per document.
+     */
+    int m = M;
+
+    /**
+     *   Number of threads running the walks.
+     */
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     *   Seed of the random generators; every thread gets its own
+     *   generator split off from one seeded with this.
+     */
+    long seed = System.nanoTime();
+
+    /**
+     *   Number of steps (visited documents) of the last run.
+     */
+    long steps;
+
     /* --------------------------------------------- */
 
+    private MonteCarlo() {
+    }
+
     public MonteCarlo( String filename ) {
-        int noOfDocs = readDocs( filename );
-        // MonteCarlo1( noOfDocs );
-        // MonteCarlo2( noOfDocs );
-        MonteCarlo4( noOfDocs );
-        // MonteCarlo5( noOfDocs );
+        this( filename, Estimator.COMPLETE_PATH_CYCLIC_START, M, Runtime.getRuntime().availableProcessors() );
+    }
 
+    public MonteCarlo( String filename, Estimator estimator, int m, int threads ) {
+        this.m = m;
+        this.threads = threads;
+        int noOfDocs = readDocs( filename );
+        long start = System.currentTimeMillis();
+        double[] x = run( estimator, noOfDocs );
+        long elapsedTime = System.currentTimeMillis() - start;
+        System.err.println( "Monte Carlo " + estimator.number + " (" + estimator + "), " + threads + " threads" );
+        System.err.println( "Elapsed Time: " + (double)elapsedTime / 1000 + " sec, " + String.format( "%.1f", (double)steps / Math.max( elapsedTime, 1 ) / 1000 ) + " million steps/sec" );
+        if ( new File( "davis_top_30.txt" ).exists() ) {
+            System.err.println( "Monte Carlo " + estimator.number + " SS: " + String.format( "%.10f", sumOfSquares( x )));
+        }
+        System.err.println();
+        printPageRanks( x );
     }
 
     /* --------------------------------------------- */
 
     /**
-     *   Reads the documents and fills the data structures. 
+     *   Reads the documents and fills the data structures.
      *
      *   @return the number of documents read.
      */
     int readDocs( String filename ) {
         int fileIndex = 0;
+        int[] from = new int[1024];
+        int[] to = new int[1024];
+        int numberOfLinks = 0;
         try {
             System.err.print( "Reading file... " );
             BufferedReader in = new BufferedReader( new FileReader( filename ));
@@ -73,7 +149,7 @@ public class MonteCarlo {
             String title = line.substring( 0, index );
             Integer fromdoc = docNumber.get( title );
             //  Have we seen this document before?
-            if ( fromdoc == null ) {	
+            if ( fromdoc == null ) {
                 // This is a previously unseen doc, so add it to the table.
                 fromdoc = fileIndex++;
                 docNumber.put( title, fromdoc );
@@ -90,15 +166,13 @@ public class MonteCarlo {
                 docNumber.put( otherTitle, otherDoc );
                 docName[otherDoc] = otherTitle;
                 }
-                // Set the probability to 0 for now, to indicate that there is
-                // a link from fromdoc to otherDoc.
-                if ( link.get(fromdoc) == null ) {
-                link.put(fromdoc, new HashMap<Integer,Boolean>());
-                }
-                if ( link.get(fromdoc).get(otherDoc) == null ) {
-                link.get(fromdoc).put( otherDoc, true );
-                out[fromdoc]++;
+                if ( numberOfLinks == from.length ) {
+                from = Arrays.copyOf( from, 2*numberOfLinks );
+                to = Arrays.copyOf( to, 2*numberOfLinks );
                 }
+                from[numberOfLinks] = fromdoc;
+                to[numberOfLinks] = otherDoc;
+                numberOfLinks++;
             }
             }
             if ( fileIndex >= MAX_NUMBER_OF_DOCS ) {
@@ -114,147 +188,286 @@ public class MonteCarlo {
         catch ( IOException e ) {
             System.err.println( "Error reading file " + filename );
         }
+        buildRows( fileIndex, from, to, numberOfLinks );
         System.err.println( "Read " + fileIndex + " number of documents" );
         return fileIndex;
     }
-    
-    
-    /* --------------------------------------------- */
-
 
-    public void MonteCarlo1( int numberOfDocs ) {
-        long start = System.currentTimeMillis();
-        final int N = numberOfDocs * M;
-        double[] x = new double[numberOfDocs];
-        Random random = new Random();
-
-        int walk;
-        for (int i = 0; i < N; i++) {
-            int currKey = random.nextInt(numberOfDocs);
-
-            while ((walk = random.nextInt(100)) < 85) {
-                if (out[currKey] == 0) currKey = random.nextInt(numberOfDocs);
-                else {
-                    List<Integer> outLinks = new ArrayList<Integer>(link.get(currKey).keySet());
-                    currKey = outLinks.get(random.nextInt(outLinks.size()));
+    /**
+     *   Builds rowPtr and colIdx from the links <code>from[k] -> to[k]</code>,
+     *   dropping duplicate links.
+     */
+    private void buildRows( int numberOfDocs, int[] from, int[] to, int numberOfLinks ) {
+        // Counting sort of the links by source
+        rowPtr = new int[numberOfDocs+1];
+        for ( int k = 0; k < numberOfLinks; k++ ) {
+            rowPtr[from[k]+1]++;
+        }
+        for ( int i = 0; i < numberOfDocs; i++ ) {
+            rowPtr[i+1] += rowPtr[i];
+        }
+        colIdx = new int[numberOfLinks];
+        int[] next = Arrays.copyOf( rowPtr, numberOfDocs );
+        for ( int k = 0; k < numberOfLinks; k++ ) {
+            colIdx[next[from[k]]++] = to[k];
+        }
+        // Sort every row and remove duplicates, compacting the rows
+        int write = 0;
+        int rowStart = 0;
+        for ( int i = 0; i < numberOfDocs; i++ ) {
+            int rowEnd = rowPtr[i+1];
+            Arrays.sort( colIdx, rowStart, rowEnd );
+            rowPtr[i] = write;
+            for ( int k = rowStart; k < rowEnd; k++ ) {
+                if ( k == rowStart || colIdx[k] != colIdx[k-1] ) {
+                    colIdx[write++] = colIdx[k];
                 }
             }
-            x[currKey]++;
+            rowStart = rowEnd;
         }
+        rowPtr[numberOfDocs] = write;
+    }
 
-        for (int i = 0; i < x.length; i++) {
-            x[i] = x[i] / N;
-        }
-        long elapsedTime = System.currentTimeMillis() - start;
-        System.err.println("Elapsed Time: " + (double)elapsedTime / 1000 + " sec");
 
-        System.err.println("Monte Carlo 1 SS: " + String.format("%.10f", sumOfSquares(x)));
-        System.err.println();
+    /* --------------------------------------------- */
+
+
+    /**
+     *   Runs numberOfDocs * m walks with the estimator and returns the
+     *   estimated ranks.
+     */
+    public double[] run( Estimator estimator, int numberOfDocs ) {
+        int[][] visits = new int[threads][numberOfDocs];
+        steps = walkAll( estimator, numberOfDocs, 0, (long)numberOfDocs * m, randoms(), visits );
+        return estimate( visits, numberOfDocs );
     }
 
-    public void MonteCarlo2( int numberOfDocs ) {
-        long start = System.currentTimeMillis();
+    /**
+     *   Runs walks in batches of <code>batchWalks</code> until the top
+     *   k documents (and their order) have been the same after
+     *   <code>stableBatches</code> batches in a row, or until the
+     *   confidence bound is met: the 95% confidence interval of every
+     *   top k rank is within <code>confidence</code> times the rank
+     *   (0 to not use the bound). The intervals come from the normal
+     *   approximation of the visit counts, which is only approximate
+     *   for the complete-path estimators since the visits of a walk are
+     *   not independent. At most <code>maxWalks</code> walks are run.
+     *
+     *   After every batch a line is written to the CSV file (if not
+     *   null): walks, steps, seconds, number of batches the top k has
+     *   been stable, the largest relative confidence interval of the
+     *   top k, and the sum of squared errors against davis_top_30.txt
+     *   (if that file exists).
+     */
+    public double[] runAnytime( Estimator estimator, int numberOfDocs, int k, long batchWalks, int stableBatches,
+                                double confidence, long maxWalks, String csvFile ) throws IOException {
+        int[][] visits = new int[threads][numberOfDocs];
+        SplittableRandom[] randoms = randoms();
+        boolean haveReference = new File( "davis_top_30.txt" ).exists();
+        PrintWriter csv = csvFile == null ? null : new PrintWriter( new BufferedWriter( new FileWriter( csvFile )));
+        if ( csv != null ) {
+            csv.println( "walks,steps,seconds,stable_batches,max_relative_interval,sum_of_squares" );
+        }
+        long startTime = System.currentTimeMillis();
+        long walks = 0;
+        int stable = 0;
+        int[] previousTop = null;
         double[] x = new double[numberOfDocs];
-        Random random = new Random();
-
-        int startingKey = 0;
-        int count = 0;
-        int walk;
-        while (startingKey < numberOfDocs) {
-            int currKey = startingKey;
-
-            while ((walk = random.nextInt(100)) < 85) {
-                if (out[currKey] == 0) currKey = random.nextInt(numberOfDocs);
-                else {
-                    List<Integer> outLinks = new ArrayList<Integer>(link.get(currKey).keySet());
-                    currKey = outLinks.get(random.nextInt(outLinks.size()));
+        steps = 0;
+        try {
+            while ( walks < maxWalks ) {
+                long last = Math.min( walks + batchWalks, maxWalks );
+                steps += walkAll( estimator, numberOfDocs, walks, last, randoms, visits );
+                walks = last;
+                x = estimate( visits, numberOfDocs );
+                int[] top = topK( x, k );
+                stable = Arrays.equals( top, previousTop ) ? stable + 1 : 0;
+                previousTop = top;
+                // Relative 95% confidence interval of the smallest top k rank
+                double samples = estimator.completePath ? (double)steps : (double)walks;
+                double interval = 0;
+                for ( int i : top ) {
+                    if ( x[i] > 0 ) {
+                        interval = Math.max( interval, 1.96 * Math.sqrt( x[i] * ( 1 - x[i] ) / samples ) / x[i] );
+                    }
+                }
+                double seconds = ( System.currentTimeMillis() - startTime ) / 1000.0;
+                String ss = haveReference ? String.format( Locale.ROOT, "%.10f", sumOfSquares( x )) : "";
+                if ( csv != null ) {
+                    csv.println( String.format( Locale.ROOT, "%d,%d,%.3f,%d,%.5f,%s", walks, steps, seconds, stable, interval, ss ));
+                    csv.flush();
+                }
+                System.err.println( String.format( "%d walks, %.1f sec: top %d stable for %d batches, confidence interval %.2f%%",
+                                                   walks, seconds, k, stable, 100 * interval ));
+                if ( stable >= stableBatches || ( confidence > 0 && interval <= confidence )) {
+                    break;
                 }
             }
-            x[currKey]++;
-            count++;
-            if (count >= M) {
-                 startingKey++; 
-                 count = 0;
+        } finally {
+            if ( csv != null ) {
+                csv.close();
             }
         }
+        return x;
+    }
 
-        for (int i = 0; i < x.length; i++) {
-            x[i] = x[i] / (numberOfDocs * M);
+    /**
+     *   One random generator per thread, split off from one seeded with
+     *   <code>seed</code>.
+     */
+    private SplittableRandom[] randoms() {
+        SplittableRandom root = new SplittableRandom( seed );
+        SplittableRandom[] randoms = new SplittableRandom[threads];
+        for ( int t = 0; t < threads; t++ ) {
+            randoms[t] = root.split();
         }
-        long elapsedTime = System.currentTimeMillis() - start;
-        System.err.println("Elapsed Time: " + (double)elapsedTime / 1000 + " sec");
+        return randoms;
+    }
 
-        System.err.println("Monte Carlo 2 SS: " + String.format("%.10f", sumOfSquares(x)));
-        System.err.println();
+    /**
+     *   Runs the walks numbered <code>first..last-1</code>, split evenly
+     *   over the threads. Every thread has its own random generator and
+     *   its own visit counters (<code>visits[thread]</code>), so the
+     *   threads share nothing but the (read-only) link arrays.
+     *
+     *   @return the number of steps taken.
+     */
+    private long walkAll( Estimator estimator, int numberOfDocs, long first, long last, SplittableRandom[] randoms, int[][] visits ) {
+        final long walks = last - first;
+        final long[] threadSteps = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for ( int t = 0; t < threads; t++ ) {
+            final int thread = t;
+            final long from = first + walks * t / threads;
+            final long to = first + walks * ( t + 1 ) / threads;
+            workers[t] = new Thread( () -> {
+                threadSteps[thread] = walk( estimator, numberOfDocs, from, to, randoms[thread], visits[thread] );
+            });
+            workers[t].start();
+        }
+        try {
+            for ( Thread w : workers ) {
+                w.join();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        }
+        long steps = 0;
+        for ( long s : threadSteps ) {
+            steps += s;
+        }
+        return steps;
     }
 
-    public void MonteCarlo4( int numberOfDocs ) {
-        // long start = System.currentTimeMillis();
+    /**
+     *   Sums the visit counters of the threads into the estimated ranks.
+     */
+    private double[] estimate( int[][] visits, int numberOfDocs ) {
         double[] x = new double[numberOfDocs];
-        Random random = new Random();
-        int totalVisits = 0;
-
-        int startingKey = 0;
-        int count = 0;
-        int walk;
-        while (startingKey < numberOfDocs) {
-            int currKey = startingKey; 
-            x[currKey]++; totalVisits++;
-
-            while ((walk = random.nextInt(100)) < 85 && out[currKey] != 0) {
-                List<Integer> outLinks = new ArrayList<Integer>(link.get(currKey).keySet());
-                currKey = outLinks.get(random.nextInt(outLinks.size()));
-                x[currKey]++; totalVisits++; 
+        long total = 0;
+        for ( int t = 0; t < visits.length; t++ ) {
+            for ( int i = 0; i < numberOfDocs; i++ ) {
+                x[i] += visits[t][i];
+                total += visits[t][i];
             }
+        }
+        for ( int i = 0; i < numberOfDocs; i++ ) {
+            x[i] = x[i] / total;
+        }
+        return x;
+    }
 
-            count++;
-            if (count >= M) {
-                 startingKey++; 
-                 count = 0;
+    /**
+     *   The documents with the k highest ranks, highest first (found
+     *   with a min-heap of k documents).
+     */
+    static int[] topK( double[] x, int k ) {
+        k = Math.min( k, x.length );
+        int[] heap = new int[k];
+        int size = 0;
+        for ( int i = 0; i < x.length; i++ ) {
+            if ( size < k ) {
+                // Sift up
+                int pos = size++;
+                while ( pos > 0 && x[heap[( pos - 1 ) / 2]] > x[i] ) {
+                    heap[pos] = heap[( pos - 1 ) / 2];
+                    pos = ( pos - 1 ) / 2;
+                }
+                heap[pos] = i;
+            } else if ( x[i] > x[heap[0]] ) {
+                siftDown( x, heap, size, i );
             }
         }
-
-        for (int i = 0; i < x.length; i++) {
-            x[i] = x[i] / totalVisits;
+        // Take out the smallest one at a time, filling the array from the back
+        int[] top = new int[k];
+        while ( size > 0 ) {
+            top[size-1] = heap[0];
+            size--;
+            if ( size > 0 ) {
+                siftDown( x, heap, size, heap[size] );
+            }
         }
-        printPageRanks(x);
-        // long elapsedTime = System.currentTimeMillis() - start;
-        // System.err.println("Elapsed Time: " + (double)elapsedTime / 1000 + " sec");
-
-        // System.err.println("Monte Carlo 4 SS: " + String.format("%.10f", sumOfSquares(x)));
-        // System.err.println();
+        return top;
     }
 
-    public void MonteCarlo5( int numberOfDocs ) {
-        long start = System.currentTimeMillis();
-        int N = numberOfDocs * M;
-        double[] x = new double[numberOfDocs];
-        Random random = new Random();
-
-        int totalVisits = 0;
-        int walk;
-        for (int i = 0; i < N; i++) {
-            int currKey = random.nextInt(numberOfDocs);
-            x[currKey]++; totalVisits++;
-
-            while ((walk = random.nextInt(100)) < 85 && out[currKey] != 0) {
-                List<Integer> outLinks = new ArrayList<Integer>(link.get(currKey).keySet());
-                currKey = outLinks.get(random.nextInt(outLinks.size()));
-                x[currKey]++; totalVisits++; 
+    /** Puts document i at the root of the heap and sifts it down. */
+    private static void siftDown( double[] x, int[] heap, int size, int i ) {
+        int pos = 0;
+        while ( 2 * pos + 1 < size ) {
+            int child = 2 * pos + 1;
+            if ( child + 1 < size && x[heap[child+1]] < x[heap[child]] ) {
+                child++;
+            }
+            if ( x[heap[child]] >= x[i] ) {
+                break;
             }
+            heap[pos] = heap[child];
+            pos = child;
         }
+        heap[pos] = i;
+    }
 
-        for (int i = 0; i < x.length; i++) {
-            x[i] = x[i] / totalVisits;
+    /**
+     *   Runs the walks numbered <code>first..last-1</code> and counts
+     *   the visits (or end points) in <code>visits</code>. Walk w starts
+     *   at document w / m (modulo the number of documents), or at a
+     *   random document.
+     *
+     *   @return the number of steps taken.
+     */
+    private long walk( Estimator estimator, int numberOfDocs, long first, long last, SplittableRandom random, int[] visits ) {
+        final int[] rowPtr = this.rowPtr;
+        final int[] colIdx = this.colIdx;
+        final boolean completePath = estimator.completePath;
+        long steps = 0;
+        for ( long w = first; w < last; w++ ) {
+            int currKey = estimator.randomStart ? random.nextInt( numberOfDocs ) : (int)( w / m % numberOfDocs );
+            if ( completePath ) {
+                visits[currKey]++;
+            }
+            steps++;
+            while ( random.nextDouble() >= BORED ) {
+                int start = rowPtr[currKey];
+                int out = rowPtr[currKey+1] - start;
+                if ( out == 0 ) {
+                    if ( completePath ) break;
+                    currKey = random.nextInt( numberOfDocs );
+                } else {
+                    currKey = colIdx[start + random.nextInt( out )];
+                }
+                if ( completePath ) {
+                    visits[currKey]++;
+                }
+                steps++;
+            }
+            if ( !completePath ) {
+                visits[currKey]++;
+            }
         }
-        long elapsedTime = System.currentTimeMillis() - start;
-        // System.err.println("Elapsed Time: " + (double)elapsedTime / 1000 + " sec");
-
-        // System.err.println("Monte Carlo 5 SS: " + String.format("%.10f", sumOfSquares(x)));
-        // System.err.println(); 
-        printPageRanks(x);   
+        return steps;
     }
-    
+
 
     /* --------------------------------------------- */
 
@@ -304,12 +517,90 @@ public class MonteCarlo {
 
     /* --------------------------------------------- */
 
+    /**
+     *   Usage: MonteCarlo [-e 1|2|4|5] [-m walks_per_document] [-t threads] links_file
+     *          MonteCarlo -anytime [-e 1|2|4|5] [-t threads] [-k top_k] [-batch walks]
+     *                     [-stable batches] [-conf relative_interval] [-max walks] [-csv file] links_file
+     *
+     *   With -anytime, walks are run in batches (default: one walk per
+     *   document) until the top k (default 30) has been stable for the
+     *   given number of batches (default 5), the confidence bound is met,
+     *   or the maximal number of walks (default 100 per document) is
+     *   reached; see runAnytime().
+     */
     public static void main( String[] args ) {
-        if ( args.length != 1 ) {
+        Estimator estimator = Estimator.COMPLETE_PATH_CYCLIC_START;
+        int m = M;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean anytime = false;
+        int k = 30;
+        long batchWalks = 0;
+        int stableBatches = 5;
+        double confidence = 0;
+        long maxWalks = 0;
+        String csvFile = null;
+        String filename = null;
+        int i = 0;
+        while ( i < args.length ) {
+            if ( args[i].equals( "-e" ) && i+1 < args.length ) {
+                estimator = Estimator.byNumber( Integer.parseInt( args[i+1] ));
+                i += 2;
+            } else if ( args[i].equals( "-m" ) && i+1 < args.length ) {
+                m = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( args[i].equals( "-t" ) && i+1 < args.length ) {
+                threads = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( args[i].equals( "-anytime" )) {
+                anytime = true;
+                i++;
+            } else if ( args[i].equals( "-k" ) && i+1 < args.length ) {
+                k = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( args[i].equals( "-batch" ) && i+1 < args.length ) {
+                batchWalks = Long.parseLong( args[i+1] );
+                i += 2;
+            } else if ( args[i].equals( "-stable" ) && i+1 < args.length ) {
+                stableBatches = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( args[i].equals( "-conf" ) && i+1 < args.length ) {
+                confidence = Double.parseDouble( args[i+1] );
+                i += 2;
+            } else if ( args[i].equals( "-max" ) && i+1 < args.length ) {
+                maxWalks = Long.parseLong( args[i+1] );
+                i += 2;
+            } else if ( args[i].equals( "-csv" ) && i+1 < args.length ) {
+                csvFile = args[i+1];
+                i += 2;
+            } else {
+                filename = args[i++];
+            }
+        }
+        if ( filename == null ) {
             System.err.println( "Please give the name of the link file" );
+            System.err.println( "Usage: MonteCarlo [-e 1|2|4|5] [-m walks_per_document] [-t threads] links_file" );
+            System.err.println( "       MonteCarlo -anytime [-e 1|2|4|5] [-t threads] [-k top_k] [-batch walks] [-stable batches] [-conf relative_interval] [-max walks] [-csv file] links_file" );
+        }
+        else if ( !anytime ) {
+            new MonteCarlo( filename, estimator, m, threads );
         }
         else {
-            new MonteCarlo( args[0] );
+            MonteCarlo mc = new MonteCarlo();
+            mc.threads = threads;
+            int noOfDocs = mc.readDocs( filename );
+            if ( batchWalks <= 0 ) batchWalks = noOfDocs;
+            if ( maxWalks <= 0 ) maxWalks = 100L * noOfDocs;
+            try {
+                long start = System.currentTimeMillis();
+                double[] x = mc.runAnytime( estimator, noOfDocs, k, batchWalks, stableBatches, confidence, maxWalks, csvFile );
+                long elapsedTime = System.currentTimeMillis() - start;
+                System.err.println( "Monte Carlo " + estimator.number + " (" + estimator + "), anytime, " + threads + " threads" );
+                System.err.println( "Elapsed Time: " + (double)elapsedTime / 1000 + " sec, " + String.format( "%.1f", (double)mc.steps / Math.max( elapsedTime, 1 ) / 1000 ) + " million steps/sec" );
+                System.err.println();
+                mc.printPageRanks( x );
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
         }
     }
-}
\ No newline at end of file
+}
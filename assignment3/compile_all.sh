@@ -3,4 +3,4 @@ if ! [ -d classes ];
 then
    mkdir classes
 fi
-javac -cp . -d classes ir/Engine.java ir/Tokenizer.java ir/TokenTest.java ir/Index.java ir/Indexer.java ir/Searcher.java ir/HashedIndex.java ir/PersistentHashedIndex.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/PostingsList.java ir/PostingsEntry.java ir/SearchGUI.java ir/PersistentScalableHashedIndex.java ir/PageRankSparse.java ir/HITSRanker.java
+javac -cp . -d classes ir/Engine.java ir/Tokenizer.java ir/TokenTest.java ir/Index.java ir/Indexer.java ir/Searcher.java ir/HashedIndex.java ir/PersistentHashedIndex.java ir/Query.java ir/QueryType.java ir/RankingType.java ir/PostingsList.java ir/PostingsEntry.java ir/SearchGUI.java ir/PersistentScalableHashedIndex.java ir/PageRankSparse.java ir/HITSRanker.java ir/IndexWatcher.java ir/IndexSnapshot.java ir/KGramIndex.java ir/KGramPostingsEntry.java ir/SpellChecker.java ir/SpellingOptionsDialog.java ir/SearchServer.java ir/BatchSearch.java ir/Benchmarks.java ir/TermDictionary.java ir/TokenizerConfig.java ir/Utf8MappedReader.java ir/ForwardIndex.java ir/Lexicon.java ir/LinkGraph.java ir/ParallelPageRank.java ir/PageRankScores.java ir/IncrementalPageRank.java ir/DocumentLinks.java ir/PersonalizedPageRank.java
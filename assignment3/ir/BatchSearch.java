@@ -0,0 +1,228 @@
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *   Runs a file of queries against the index and reports throughput
+ *   and latency, to catch performance regressions without the GUI.
+ *
+ *   Each line of the query file has the form
+ *
+ *     QUERY_TYPE [RANKING_TYPE] <tab> query words
+ *
+ *   e.g. "RANKED_QUERY HITS\tzombie attack". Lines beginning with "//"
+ *   are comments. All other options are passed on to the Engine, e.g.
+ *
+ *     java ir.BatchSearch -d ./davisWiki -p patterns.txt -q queries.txt -t 8
+ */
+public class BatchSearch {
+
+    /** One query of the query file. */
+    static class Job {
+        String queryString;
+        QueryType queryType;
+        RankingType rankingType;
+
+        /** Name of the group this query is reported in. */
+        String label;
+
+        Job( String queryString, QueryType queryType, RankingType rankingType ) {
+            this.queryString = queryString;
+            this.queryType = queryType;
+            this.rankingType = rankingType;
+            label = queryType == QueryType.RANKED_QUERY ? queryType + "/" + rankingType : queryType.toString();
+        }
+    }
+
+    /** The queries to run. */
+    ArrayList<Job> jobs = new ArrayList<Job>();
+
+    /** Number of concurrent threads. */
+    int threads = 1;
+
+    /** Number of times every query is run. */
+    int repetitions = 1;
+
+    /** Number of unmeasured runs through the query file. */
+    int warmups = 1;
+
+    /** The latency recorded for a query that threw an exception. */
+    static final long FAILED = -1;
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Reads the query file.
+     */
+    void readQueries( String filename ) throws IOException {
+        BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( filename ), StandardCharsets.UTF_8 ));
+        String line;
+        int lineNo = 0;
+        while (( line = in.readLine()) != null ) {
+            lineNo++;
+            line = line.trim();
+            if ( line.length() == 0 || line.startsWith( "//" )) continue;
+            int tab = line.indexOf( '\t' );
+            if ( tab < 0 ) {
+                System.err.println( "Warning: no tab on line " + lineNo + ", skipped" );
+                continue;
+            }
+            String[] types = line.substring( 0, tab ).trim().split( "\\s+" );
+            try {
+                QueryType queryType = QueryType.valueOf( types[0] );
+                RankingType rankingType = types.length > 1 ? RankingType.valueOf( types[1] ) : RankingType.TF_IDF;
+                jobs.add( new Job( line.substring( tab+1 ).toLowerCase().trim(), queryType, rankingType ));
+            } catch ( IllegalArgumentException e ) {
+                System.err.println( "Warning: unknown query or ranking type on line " + lineNo + ", skipped" );
+            }
+        }
+        in.close();
+    }
+
+
+    /**
+     *  Runs every query <code>rounds</code> times on the given number of
+     *  threads.
+     *
+     *  @return the latency in nanoseconds of each execution, or FAILED if
+     *  the query threw an exception; execution i ran jobs.get(i % jobs.size()).
+     */
+    long[] run( Searcher searcher, int rounds ) throws InterruptedException {
+        final int total = rounds * jobs.size();
+        final long[] latencies = new long[total];
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        for ( int t=0; t<threads; t++ ) {
+            pool.execute( () -> {
+                int i;
+                while (( i = next.getAndIncrement() ) < total ) {
+                    Job job = jobs.get( i % jobs.size() );
+                    long start = System.nanoTime();
+                    try {
+                        searcher.search( new Query( job.queryString ), job.queryType, job.rankingType );
+                        latencies[i] = System.nanoTime() - start;
+                    } catch ( RuntimeException e ) {
+                        latencies[i] = FAILED;
+                        if ( i < jobs.size() ) {
+                            System.err.println( "Query \"" + job.queryString + "\" (" + job.label + ") failed: " + e );
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination( Long.MAX_VALUE, TimeUnit.NANOSECONDS );
+        return latencies;
+    }
+
+
+    /**
+     *  Prints QPS and latency percentiles, for all queries and per query type.
+     *  Failed queries are counted, but left out of the percentiles.
+     */
+    void report( long[] latencies, long wallTime ) {
+        TreeMap<String,ArrayList<Long>> groups = new TreeMap<String,ArrayList<Long>>();
+        TreeMap<String,Integer> failures = new TreeMap<String,Integer>();
+        ArrayList<Long> all = new ArrayList<Long>();
+        int failed = 0;
+        for ( int i=0; i<latencies.length; i++ ) {
+            String label = jobs.get( i % jobs.size() ).label;
+            ArrayList<Long> group = groups.computeIfAbsent( label, k -> new ArrayList<Long>() );
+            if ( latencies[i] == FAILED ) {
+                failures.merge( label, 1, Integer::sum );
+                failed++;
+                continue;
+            }
+            group.add( latencies[i] );
+            all.add( latencies[i] );
+        }
+        System.out.println( String.format( "%d queries on %d thread(s) in %.3f s: %.1f QPS",
+                                           latencies.length, threads, wallTime/1e9, latencies.length/(wallTime/1e9) ));
+        System.out.println( String.format( "%-24s %8s %8s %10s %10s %10s %10s", "type", "count", "failed", "p50 ms", "p95 ms", "p99 ms", "max ms" ));
+        for ( Map.Entry<String,ArrayList<Long>> e : groups.entrySet() ) {
+            printRow( e.getKey(), e.getValue(), failures.getOrDefault( e.getKey(), 0 ));
+        }
+        printRow( "ALL", all, failed );
+    }
+
+
+    private void printRow( String label, ArrayList<Long> values, int failed ) {
+        if ( values.isEmpty() ) {
+            System.out.println( String.format( "%-24s %8d %8d %10s %10s %10s %10s", label, 0, failed, "-", "-", "-", "-" ));
+            return;
+        }
+        Collections.sort( values );
+        System.out.println( String.format( "%-24s %8d %8d %10.3f %10.3f %10.3f %10.3f", label, values.size(), failed,
+                                           percentile( values, 50 ), percentile( values, 95 ),
+                                           percentile( values, 99 ), values.get( values.size()-1 )/1e6 ));
+    }
+
+
+    /** Nearest-rank percentile of sorted values, in milliseconds. */
+    static double percentile( List<Long> sorted, double p ) {
+        int rank = (int)Math.ceil( p / 100.0 * sorted.size() );
+        return sorted.get( Math.max( 0, rank-1 )) / 1e6;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -q <filename> : file with one query per line (mandatory)" );
+        System.err.println( "  -t <n> : number of concurrent threads (default 1)" );
+        System.err.println( "  -n <n> : number of times every query is run (default 1)" );
+        System.err.println( "  -warmup <n> : number of unmeasured runs (default 1)" );
+        System.err.println( "  All other parameters are passed on to the Engine (-d, -p, -ni, ...)" );
+    }
+
+
+    public static void main( String[] args ) throws Exception {
+        BatchSearch b = new BatchSearch();
+        ArrayList<String> engineArgs = new ArrayList<String>();
+        String queryFile = null;
+        int i=0;
+        while ( i<args.length ) {
+            if ( i+1<args.length && "-q".equals( args[i] )) {
+                queryFile = args[i+1];
+                i += 2;
+            } else if ( i+1<args.length && "-t".equals( args[i] )) {
+                b.threads = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( i+1<args.length && "-n".equals( args[i] )) {
+                b.repetitions = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else if ( i+1<args.length && "-warmup".equals( args[i] )) {
+                b.warmups = Integer.parseInt( args[i+1] );
+                i += 2;
+            } else {
+                engineArgs.add( args[i++] );
+            }
+        }
+        if ( queryFile == null ) {
+            printHelpMessage();
+            return;
+        }
+        b.readQueries( queryFile );
+        if ( b.jobs.isEmpty() ) {
+            System.err.println( "No queries in " + queryFile );
+            return;
+        }
+        Engine engine = new Engine( engineArgs.toArray( new String[0] ), true );
+        if ( b.warmups > 0 ) {
+            b.run( engine.searcher, b.warmups );
+        }
+        long start = System.nanoTime();
+        long[] latencies = b.run( engine.searcher, b.repetitions );
+        b.report( latencies, System.nanoTime() - start );
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,393 @@
+package ir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+
+/**
+ *   Microbenchmarks for the hot paths of the engine: tokenizing,
+ *   postings lists, searching, k-gram insertion, spelling correction
+ *   and PageRank.
+ *
+ *   All benchmarks run on a synthetic corpus whose term frequencies
+ *   follow a Zipf distribution, so that the results do not depend on
+ *   the data set at hand. Every benchmark is first warmed up, and then
+ *   measured in a number of rounds of fixed length; the mean time per
+ *   operation and its standard deviation over the rounds are printed.
+ *
+ *     java ir.Benchmarks -docs 5000 -vocab 50000 -b 'postings.*'
+ */
+public class Benchmarks {
+
+    /** A benchmarked operation. */
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    /** Results are folded into this field, so the JIT cannot drop the work. */
+    static volatile int sink;
+
+    /** Names and operations of the benchmarks, in the order they are run. */
+    LinkedHashMap<String,Operation> benchmarks = new LinkedHashMap<String,Operation>();
+
+    /* Options, see printHelpMessage(). */
+    int numberOfDocs = 2000;
+    int docLength = 200;
+    int vocabularySize = 20000;
+    double zipfExponent = 1.0;
+    int numberOfLinkDocs = 300;
+    long seed = 42;
+    long warmupMs = 2000;
+    long roundMs = 1000;
+    int rounds = 5;
+    String patterns_file = null;
+    Pattern filter = null;
+
+    /** Random generator of the corpus. */
+    Random random;
+
+    /** Cumulative Zipf distribution over the vocabulary. */
+    double[] cumulative;
+
+    /** The vocabulary, most frequent word first. */
+    String[] vocabulary;
+
+    /** The synthetic documents. */
+    String[] docs;
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Returns a word for the given frequency rank. Words are strings of
+     *  lowercase letters, at least three letters long, and different
+     *  ranks give different words.
+     */
+    static String word( int rank ) {
+        StringBuilder sb = new StringBuilder();
+        int n = rank + 26*26;
+        while ( n > 0 ) {
+            sb.append( (char)('a' + n%26) );
+            n /= 26;
+        }
+        return sb.toString();
+    }
+
+
+    /** Returns a random word rank drawn from the Zipf distribution. */
+    int nextRank() {
+        double u = random.nextDouble() * cumulative[cumulative.length-1];
+        int i = Arrays.binarySearch( cumulative, u );
+        return i >= 0 ? i : Math.min( -i-1, cumulative.length-1 );
+    }
+
+
+    /**
+     *  Generates the vocabulary and the documents.
+     */
+    void generateCorpus() {
+        random = new Random( seed );
+        cumulative = new double[vocabularySize];
+        vocabulary = new String[vocabularySize];
+        double sum = 0;
+        for ( int r=0; r<vocabularySize; r++ ) {
+            sum += 1.0 / Math.pow( r+1, zipfExponent );
+            cumulative[r] = sum;
+            vocabulary[r] = word( r );
+        }
+        docs = new String[numberOfDocs];
+        for ( int d=0; d<numberOfDocs; d++ ) {
+            StringBuilder sb = new StringBuilder();
+            for ( int i=0; i<docLength; i++ ) {
+                sb.append( vocabulary[nextRank()] );
+                sb.append( i%15 == 14 ? ".\n" : " " );
+            }
+            sb.append( '\n' );
+            docs[d] = sb.toString();
+        }
+    }
+
+
+    /**
+     *  Writes the documents to a temporary directory and indexes them.
+     */
+    Indexer buildIndex( KGramIndex kgIndex ) throws IOException {
+        File dir = createTempDir( "bench-corpus" );
+        for ( int d=0; d<numberOfDocs; d++ ) {
+            File f = new File( dir, "doc" + d + ".txt" );
+            f.deleteOnExit();
+            try ( Writer w = new OutputStreamWriter( new FileOutputStream( f ), StandardCharsets.UTF_8 )) {
+                w.write( docs[d] );
+            }
+        }
+        Indexer indexer = new Indexer( new HashedIndex(), kgIndex, patterns_file );
+        indexer.processFiles( dir, true );
+        indexer.flush();
+        return indexer;
+    }
+
+
+    /**
+     *  Writes a link file for PageRank, in the format "from;to,to,...".
+     *  The link targets are drawn from the Zipf distribution, so a few
+     *  documents get most of the inlinks; some documents have no outlinks.
+     */
+    File writeLinkFile() throws IOException {
+        File f = File.createTempFile( "bench-links", ".txt" );
+        f.deleteOnExit();
+        Random linkRandom = new Random( seed );
+        try ( PrintWriter out = new PrintWriter( new FileWriter( f ))) {
+            for ( int i=0; i<numberOfLinkDocs; i++ ) {
+                StringBuilder sb = new StringBuilder();
+                sb.append( i ).append( ';' );
+                int outlinks = linkRandom.nextInt( 10 );
+                for ( int j=0; j<outlinks; j++ ) {
+                    int rank = nextRank() % numberOfLinkDocs;
+                    if ( rank != i ) {
+                        sb.append( rank ).append( ',' );
+                    }
+                }
+                out.println( sb );
+            }
+        }
+        return f;
+    }
+
+
+    static File createTempDir( String prefix ) throws IOException {
+        File dir = File.createTempFile( prefix, "" );
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Sets up the corpus and registers all benchmarks.
+     */
+    void setup() throws Exception {
+        long startTime = System.currentTimeMillis();
+        generateCorpus();
+
+        // Tokenizer: one pass over the first 100 documents
+        StringBuilder sb = new StringBuilder();
+        for ( int d=0; d<Math.min( 100, numberOfDocs ); d++ ) {
+            sb.append( docs[d] );
+        }
+        final String text = sb.toString();
+        final Tokenizer tok = new Tokenizer( null, true, false, true, TokenizerConfig.forFile( patterns_file ));
+        benchmarks.put( "tokenizer.nextToken", () -> {
+            tok.reset( new StringReader( text ));
+            int n = 0;
+            while ( tok.hasMoreTokens() ) {
+                n += tok.nextToken().length();
+            }
+            return n;
+        });
+
+        // Postings lists
+        benchmarks.put( "postings.add", () -> {
+            PostingsList list = new PostingsList();
+            for ( int d=0; d<numberOfDocs; d++ ) {
+                for ( int offset=0; offset<4; offset++ ) {
+                    list.add( d, offset*docLength/4 );
+                }
+            }
+            return list;
+        });
+
+        final int[] offsets = new int[1000];
+        for ( int i=0; i<offsets.length; i++ ) {
+            offsets[i] = random.nextInt( 100000 );
+        }
+        benchmarks.put( "postings.insertOffset", () -> {
+            PostingsEntry entry = new PostingsEntry( 0, offsets[0] );
+            for ( int i=1; i<offsets.length; i++ ) {
+                entry.insertOffset( offsets[i] );
+            }
+            return entry;
+        });
+
+        KGramIndex kgIndex = new KGramIndex( 2 );
+        Indexer indexer = buildIndex( kgIndex );
+        final IndexSnapshot index = indexer.snapshot.get();
+        final Searcher searcher = new Searcher( indexer.snapshot, kgIndex );
+        final PostingsList frequent = index.getPostings( vocabulary[5] );
+        final PostingsList medium = index.getPostings( vocabulary[50] );
+        benchmarks.put( "postings.intersect", () -> frequent.intersect( medium ));
+        benchmarks.put( "postings.mergeLists", () -> {
+            PostingsList list = new PostingsList();
+            list.mergeLists( frequent );
+            list.mergeLists( medium );
+            return list;
+        });
+
+        // Searching
+        final String phrase = vocabulary[3] + " " + vocabulary[7];
+        final String ranked = vocabulary[10] + " " + vocabulary[100] + " " + vocabulary[1000];
+        benchmarks.put( "searcher.phraseSearch", () ->
+                        searcher.search( new Query( phrase ), QueryType.PHRASE_QUERY, RankingType.TF_IDF ));
+        benchmarks.put( "searcher.rankedSearchTFIDF", () ->
+                        searcher.search( new Query( ranked ), QueryType.RANKED_QUERY, RankingType.TF_IDF ));
+
+        // K-gram index and spelling correction
+        final int kgramWords = Math.min( 5000, vocabularySize );
+        benchmarks.put( "kgram.insert", () -> {
+            KGramIndex kg = new KGramIndex( 2 );
+            for ( int r=0; r<kgramWords; r++ ) {
+                kg.insert( vocabulary[r] );
+            }
+            return kg;
+        });
+        final SpellChecker spellChecker = new SpellChecker( index, kgIndex, searcher );
+        final String misspelled = misspell( vocabulary[20] ) + " " + misspell( vocabulary[200] );
+        benchmarks.put( "spellChecker.check", () -> spellChecker.check( new Query( misspelled ), 10 ));
+
+        // PageRank
+        final File linkFile = writeLinkFile();
+        final PageRankSparse pr = new PageRankSparse();
+        final int linkDocs = pr.readDocs( linkFile.getPath() );
+        benchmarks.put( "pageRankSparse.iterate", () -> pr.powerIterate( linkDocs, 1000 ));
+        final ParallelPageRank parallelPr = new ParallelPageRank( pr.graph, Runtime.getRuntime().availableProcessors() );
+        // The same start vector as powerIterate, so both do the same iterations
+        final double[] prStart = pr.startVector( linkDocs );
+        benchmarks.put( "pageRankParallel.iterate", () -> parallelPr.iterate( prStart, 1000, PageRankSparse.EPSILON ));
+
+        System.err.println( String.format( "Setup done in %.3f seconds: %d docs, %d words, %d terms in the index",
+                                           (System.currentTimeMillis() - startTime)/1000.0,
+                                           numberOfDocs, numberOfDocs*docLength, kgIndex.terms.size() ));
+    }
+
+
+    /** Replaces the second letter of the word, so it is (most likely) not in the index. */
+    static String misspell( String word ) {
+        char c = word.charAt( 1 ) == 'q' ? 'x' : 'q';
+        return word.charAt( 0 ) + "" + c + word.substring( 2 );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Runs the operation repeatedly for the given time.
+     *
+     *  @return the number of operations run, and the time they took in ns.
+     */
+    static long[] runFor( Operation op, long ms ) throws Exception {
+        long deadline = System.nanoTime() + ms * 1000000L;
+        long start = System.nanoTime();
+        long ops = 0, now;
+        int h = 0;
+        do {
+            h ^= System.identityHashCode( op.run() );
+            ops++;
+        } while (( now = System.nanoTime() ) < deadline );
+        sink ^= h;
+        return new long[] { ops, now - start };
+    }
+
+
+    /**
+     *  Warms up and measures one benchmark, and prints the result.
+     */
+    void measure( String name, Operation op ) throws Exception {
+        runFor( op, warmupMs );
+        double[] nsPerOp = new double[rounds];
+        double mean = 0;
+        for ( int i=0; i<rounds; i++ ) {
+            long[] r = runFor( op, roundMs );
+            nsPerOp[i] = (double)r[1] / r[0];
+            mean += nsPerOp[i] / rounds;
+        }
+        double var = 0;
+        for ( double x : nsPerOp ) {
+            var += (x - mean) * (x - mean) / Math.max( 1, rounds-1 );
+        }
+        System.out.println( String.format( "%-28s %14.1f %12.1f %14.1f", name, mean/1000, Math.sqrt( var )/1000, 1e9/mean ));
+    }
+
+
+    void runAll() throws Exception {
+        System.out.println( String.format( "%-28s %14s %12s %14s", "benchmark", "us/op", "+- us", "ops/s" ));
+        for ( Map.Entry<String,Operation> e : benchmarks.entrySet() ) {
+            if ( filter == null || filter.matcher( e.getKey() ).matches() ) {
+                measure( e.getKey(), e.getValue() );
+            }
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    static void printHelpMessage() {
+        System.err.println( "The following parameters are available: " );
+        System.err.println( "  -docs <n> : number of synthetic documents (default 2000)" );
+        System.err.println( "  -doclength <n> : number of words per document (default 200)" );
+        System.err.println( "  -vocab <n> : vocabulary size (default 20000)" );
+        System.err.println( "  -zipf <s> : Zipf exponent of the word frequencies (default 1.0)" );
+        System.err.println( "  -links <n> : number of documents in the PageRank link graph (default 300)" );
+        System.err.println( "  -seed <n> : random seed (default 42)" );
+        System.err.println( "  -warmup <ms> : warmup time per benchmark (default 2000)" );
+        System.err.println( "  -round <ms> : length of a measurement round (default 1000)" );
+        System.err.println( "  -rounds <n> : number of measurement rounds (default 5)" );
+        System.err.println( "  -p <filename> : patterns file for the tokenizer" );
+        System.err.println( "  -b <regex> : only run the benchmarks whose names match" );
+    }
+
+
+    public static void main( String[] args ) throws Exception {
+        Benchmarks b = new Benchmarks();
+        int i=0;
+        try {
+            while ( i<args.length ) {
+                String option = args[i++];
+                if ( i >= args.length ) {
+                    printHelpMessage();
+                    return;
+                }
+                String value = args[i++];
+                if ( "-docs".equals( option )) {
+                    b.numberOfDocs = Integer.parseInt( value );
+                } else if ( "-doclength".equals( option )) {
+                    b.docLength = Integer.parseInt( value );
+                } else if ( "-vocab".equals( option )) {
+                    b.vocabularySize = Integer.parseInt( value );
+                } else if ( "-zipf".equals( option )) {
+                    b.zipfExponent = Double.parseDouble( value );
+                } else if ( "-links".equals( option )) {
+                    b.numberOfLinkDocs = Integer.parseInt( value );
+                } else if ( "-seed".equals( option )) {
+                    b.seed = Long.parseLong( value );
+                } else if ( "-warmup".equals( option )) {
+                    b.warmupMs = Long.parseLong( value );
+                } else if ( "-round".equals( option )) {
+                    b.roundMs = Long.parseLong( value );
+                } else if ( "-rounds".equals( option )) {
+                    b.rounds = Integer.parseInt( value );
+                } else if ( "-p".equals( option )) {
+                    b.patterns_file = value;
+                } else if ( "-b".equals( option )) {
+                    b.filter = Pattern.compile( value );
+                } else {
+                    System.err.println( "Unknown option: " + option );
+                    printHelpMessage();
+                    return;
+                }
+            }
+        } catch ( NumberFormatException e ) {
+            System.err.println( "Bad number: " + e.getMessage() );
+            return;
+        }
+        b.setup();
+        b.runAll();
+    }
+}
@@ -0,0 +1,96 @@
+package ir;
+
+import java.io.*;
+import java.util.HashMap;
+
+
+/**
+ *   The link graph of the indexed documents, read once and shared by the
+ *   rankers that need it.
+ *
+ *   The nodes of the graph are the numbers used in the links file, not
+ *   the docIDs of the engine. A titles file (lines <code>nodeID;title</code>)
+ *   gives the file name of every node, and a document is matched to its
+ *   node by the file name of its path, so the match does not depend on
+ *   the order in which the documents were indexed.
+ *
+ *   The graph is kept in both directions (the links from and the links
+ *   to every node), so that the neighbourhood of a set of nodes can be
+ *   found in time proportional to its size. Nothing is changed after
+ *   reading, so one instance can be used by any number of threads.
+ */
+public class DocumentLinks {
+
+    /** The link graph. */
+    public final LinkGraph graph;
+
+    /** The transposed graph: the links to every node. */
+    public final LinkGraph inLinks;
+
+    /** Mapping from file names to node numbers in the graph. */
+    final HashMap<String,Integer> nodeOfTitle = new HashMap<String,Integer>();
+
+    /** Mapping from node numbers to file names (null if there is none). */
+    final String[] titleOfNode;
+
+
+    /* --------------------------------------------- */
+
+
+    DocumentLinks( LinkGraph graph ) {
+        this.graph = graph;
+        inLinks = graph.transpose();
+        titleOfNode = new String[graph.numberOfNodes];
+    }
+
+
+    /**
+     *   Reads the links file and the titles file.
+     */
+    public static DocumentLinks read( String linksFile, String titlesFile ) throws IOException {
+        DocumentLinks links = new DocumentLinks( LinkGraph.read( linksFile, PageRankSparse.MAX_NUMBER_OF_DOCS ));
+        try ( BufferedReader in = new BufferedReader( new FileReader( titlesFile ))) {
+            String line;
+            while (( line = in.readLine()) != null ) {
+                int index = line.indexOf( ';' );
+                if ( index < 0 ) {
+                    continue;
+                }
+                Integer node = links.graph.nodeNumber.get( line.substring( 0, index ));
+                if ( node != null ) {
+                    links.nodeOfTitle.put( line.substring( index + 1 ), node );
+                    links.titleOfNode[node] = line.substring( index + 1 );
+                }
+            }
+        }
+        return links;
+    }
+
+
+    /**
+     *   Returns the node of the document, or -1 if it is not in the graph.
+     */
+    public int node( Index index, int docID ) {
+        String path = index.docNames.get( docID );
+        if ( path == null ) {
+            return -1;
+        }
+        Integer node = nodeOfTitle.get( new File( path ).getName() );
+        return node == null ? -1 : node;
+    }
+
+
+    /**
+     *   Returns the docID of the node, or -1 if it is not indexed. The
+     *   document is looked for in <code>directory</code>, the directory
+     *   of the other documents in the graph.
+     */
+    public int docID( Index index, int node, String directory ) {
+        String title = titleOfNode[node];
+        if ( title == null ) {
+            return -1;
+        }
+        Integer docID = index.docIDs.get( new File( directory, title ).getPath() );
+        return docID == null ? -1 : docID;
+    }
+}
@@ -8,7 +8,13 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 /**
  *  This is the main class for the search engine.
@@ -26,24 +32,33 @@ public class Engine {
     /** K-gram index */
     KGramIndex kgIndex = new KGramIndex(2);
 
-    /** PageRankSaprse object */
-    PageRankSparse prSparse;
-
     /** The searcher used to search the index. */
     Searcher searcher;
 
     /** Spell checker */
     SpellChecker speller;
 
-    /** The engine GUI. */
+    /** The engine GUI, or null when running as a headless server. */
     SearchGUI gui;
 
+    /** The headless search server (only with -s). */
+    SearchServer server;
+
     /** Directories that should be indexed. */
     ArrayList<String> dirNames = new ArrayList<String>();
 
-    /** Lock to prevent simultaneous access to the index. */
+    /** 
+     *  Lock to prevent simultaneous writes to the index. Searches do not
+     *  take it; they read the latest published snapshot instead.
+     */
     Object indexLock = new Object();
 
+    /** The latest published snapshot of the index. */
+    AtomicReference<IndexSnapshot> snapshot = new AtomicReference<IndexSnapshot>();
+
+    /** Watches the indexed directories for changes (only with -w). */
+    IndexWatcher watcher;
+
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file = null;
 
@@ -53,9 +68,30 @@ public class Engine {
     /** The file containing the pageranks. */
     String rank_file = "";
 
+    /** The links between the documents, and the titles of the nodes in it. */
+    String links_file = "linksDavis.txt";
+    String titles_file = "davisTitles.txt";
+
+    /** 
+     *  The docID and path of every indexed document (lines
+     *  <code>docID;path</code>), written after indexing so that
+     *  <code>PageRankSparse -scores</code> can map nodes to docIDs
+     *  whichever kind of index is used.
+     */
+    static final String DOCNAMES_FILE = "docNames.txt";
+
+    /** The link graph, read once and shared by the rankers (null if there is none). */
+    DocumentLinks links;
+
     /** For persistent indexes, we might not need to do any indexing. */
     boolean is_indexing = true;
 
+    /** Keep the index up to date with changes in the directories. */
+    boolean is_watching = false;
+
+    /** Port of the headless search server, or -1 to start the GUI. */
+    int server_port = -1;
+
 
     /* ----------------------------------------------- */
 
@@ -65,36 +101,59 @@ public class Engine {
      *   Indexes all chosen directories and files
      */
     public Engine( String[] args ) {
+        this( args, false );
+    }
+
+
+    /**  
+     *   Constructor. If <code>headless</code> is true, no GUI is started
+     *   (used by tools like BatchSearch that drive the searcher directly).
+     */
+    public Engine( String[] args, boolean headless ) {
         decodeArgs( args );
-        indexer = new Indexer( index, kgIndex, patterns_file );
-        searcher = new Searcher( index, kgIndex );
+        // A persistent index loaded from disk is the base of every snapshot
+        snapshot.set( new IndexSnapshot( is_indexing ? null : index ));
+        indexer = new Indexer( index, kgIndex, patterns_file, indexLock, snapshot );
+        openForwardIndex();
+        searcher = new Searcher( snapshot, kgIndex );
         speller = new SpellChecker(index, kgIndex, searcher);
-        gui = new SearchGUI( this );
-        gui.init();
-        // gui.displayInfoText( "Precomputing page rank..." );
-        // prSparse = new PageRankSparse("linksDavis.txt");
-        // searcher.setPageRankSpare(prSparse);
+        if (!headless && server_port < 0) {
+            gui = new SearchGUI( this );
+            gui.init();
+        }
+        openPageRank();
+        readLinks();
 
         /* 
          *   Calls the indexer to index the chosen directory structure.
-         *   Access to the index is synchronized since we don't want to 
-         *   search at the same time we're indexing new files (this might 
-         *   corrupt the index).
+         *   Searches do not wait for indexing: they read the latest
+         *   snapshot, which the indexer publishes every few documents.
          */
         if (is_indexing) {
+            displayInfoText( "Indexing, please wait..." );
+            long startTime = System.currentTimeMillis();
+            for ( int i=0; i<dirNames.size(); i++ ) {
+                File dokDir = new File( dirNames.get( i ));
+                indexer.processFiles( dokDir, is_indexing );
+            }
+            indexer.flush();
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
             synchronized ( indexLock ) {
-                gui.displayInfoText( "Indexing, please wait..." );
-                long startTime = System.currentTimeMillis();
-                for ( int i=0; i<dirNames.size(); i++ ) {
-                    File dokDir = new File( dirNames.get( i ));
-                    indexer.processFiles( dokDir, is_indexing );
-                }
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                gui.displayInfoText( String.format( "Indexing done in %.1f seconds.", elapsedTime/1000.0 ));
                 index.cleanup();
+                if ( !(index instanceof HashedIndex) && indexer.forwardIndex != null ) {
+                    indexer.forwardIndex.save();
+                }
             }
+            writeDocNames();
         } else {
-            gui.displayInfoText( "Index is loaded from disk" );
+            displayInfoText( "Index is loaded from disk" );
+        }
+        if (is_watching) {
+            startWatcher();
+        }
+        if (server_port >= 0) {
+            startServer();
         }
         // if (kgIndex != null) {
         //     kgIndex.printSearch("ve");
@@ -103,6 +162,120 @@ public class Engine {
     }
 
 
+    /* ----------------------------------------------- */
+
+    /**
+     *   Shows the text in the GUI, or on stderr when running headless.
+     */
+    void displayInfoText( String info ) {
+        if (gui != null) {
+            gui.displayInfoText( info );
+        } else {
+            System.err.println( info );
+        }
+    }
+
+
+    /**
+     *  Maps the PageRank scores computed offline (by
+     *  <code>PageRankSparse -scores</code>) from the file given with -r.
+     */
+    private void openPageRank() {
+        if ( rank_file.isEmpty() ) {
+            return;
+        }
+        try {
+            PageRankScores scores = PageRankScores.open( new File( rank_file ));
+            searcher.setPageRankScores( scores );
+            displayInfoText( "Loaded the PageRank scores of " + scores.size() + " documents" );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not open the PageRank scores: " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     *  Writes the docID and path of every indexed document to
+     *  DOCNAMES_FILE, in docID order.
+     */
+    private void writeDocNames() {
+        try (PrintWriter out = new PrintWriter( new FileWriter( DOCNAMES_FILE ))) {
+            for ( Map.Entry<Integer,String> entry : new TreeMap<Integer,String>( index.docNames ).entrySet() ) {
+                out.println( entry.getKey() + ";" + entry.getValue() );
+            }
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not write " + DOCNAMES_FILE + ": " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     *  Reads the link graph, if there is one, for the rankers which
+     *  need it at query time.
+     */
+    private void readLinks() {
+        if ( !new File( links_file ).exists() || !new File( titles_file ).exists() ) {
+            displayInfoText( "No link graph (" + links_file + ", " + titles_file + "); HITS and personalized PageRank rank by tf-idf" );
+            return;
+        }
+        try {
+            links = DocumentLinks.read( links_file, titles_file );
+            searcher.setDocumentLinks( links );
+            displayInfoText( "Read the link graph: " + links.graph.numberOfNodes + " documents, " + links.graph.numberOfEdges() + " links" );
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not read the link graph: " + e.getMessage() + "; HITS and personalized PageRank rank by tf-idf" );
+        }
+    }
+
+
+    /**
+     *   Opens the forward index used for relevance feedback. It is stored
+     *   next to a persistent index (and loaded with it), or in a temporary
+     *   directory for an in-memory index.
+     */
+    private void openForwardIndex() {
+        try {
+            if ( index instanceof HashedIndex ) {
+                indexer.forwardIndex = ForwardIndex.createTemporary( indexer.terms );
+            } else {
+                indexer.forwardIndex = new ForwardIndex( new File( PersistentHashedIndex.INDEXDIR ), indexer.terms, !is_indexing );
+            }
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not open the forward index: " + e.getMessage() );
+        }
+    }
+
+
+    /**
+     *   Starts serving queries over HTTP instead of the GUI.
+     */
+    private void startServer() {
+        try {
+            server = new SearchServer( this, server_port );
+            server.start();
+        } catch ( IOException e ) {
+            System.err.println( "Could not start the search server: " + e.getMessage() );
+            System.exit( 1 );
+        }
+    }
+
+
+    /**
+     *   Starts a background thread applying file changes in the
+     *   indexed directories to the index.
+     */
+    private void startWatcher() {
+        try {
+            watcher = new IndexWatcher( indexer, dirNames );
+            Thread t = new Thread( watcher, "index-watcher" );
+            t.setDaemon( true );
+            t.start();
+        } catch ( IOException e ) {
+            System.err.println( "Warning: could not watch the directories: " + e.getMessage() );
+        }
+    }
+
+
     /* ----------------------------------------------- */
 
     /**
@@ -131,9 +304,23 @@ public class Engine {
                 if ( i < args.length ) {
                     rank_file = args[i++];
                 }
+            } else if ( "-g".equals( args[i] )) {
+                i++;
+                if ( i+1 < args.length ) {
+                    links_file = args[i++];
+                    titles_file = args[i++];
+                }
             } else if ( "-ni".equals( args[i] )) {
                 i++;
                 is_indexing = false;
+            } else if ( "-w".equals( args[i] )) {
+                i++;
+                is_watching = true;
+            } else if ( "-s".equals( args[i] )) {
+                i++;
+                if ( i < args.length ) {
+                    server_port = Integer.parseInt( args[i++] );
+                }
             } else {
                 System.err.println( "Unknown option: " + args[i] );
                 break;
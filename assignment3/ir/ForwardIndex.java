@@ -0,0 +1,288 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ *   The forward index: for every document, the terms it contains and
+ *   how often, as a vector sorted by termID (the IDs of a TermDictionary).
+ *
+ *   The vectors are written to a data file when the document is indexed
+ *   and read back through a memory mapping. A vector is stored as the
+ *   number of distinct terms, followed by (termID delta, count) pairs,
+ *   all as variable-length integers (7 bits per byte, high bit set on
+ *   all but the last byte).
+ */
+public class ForwardIndex {
+
+    /** The data file. */
+    public static final String DATA_FNAME = "forward_data";
+
+    /** The start of every vector in the data file, by docID. */
+    public static final String OFFSETS_FNAME = "forward_offsets";
+
+    /** The terms, in termID order. */
+    public static final String TERMS_FNAME = "forward_terms";
+
+    /**
+     *  The term vector of one document: <code>counts[i]</code> is the
+     *  number of occurrences of term <code>termIDs[i]</code>.
+     */
+    public static class Vector {
+        public final int[] termIDs;
+        public final int[] counts;
+        public final int size;
+
+        Vector( int[] termIDs, int[] counts, int size ) {
+            this.termIDs = termIDs;
+            this.counts = counts;
+            this.size = size;
+        }
+    }
+
+    /** The directory of the files. */
+    File dir;
+
+    /** The dictionary the termIDs refer to. */
+    TermDictionary terms;
+
+    /** The data file, opened for appending vectors. */
+    FileChannel data;
+
+    /** Size of the data file. */
+    long dataSize = 0;
+
+    /** Offset of the vector of each document in the data file, or -1. */
+    long[] offsets = new long[1024];
+
+    /** Number of documents containing each term, by termID. */
+    int[] df = new int[1024];
+
+    /** The mapped data file; remapped when vectors have been added beyond it. */
+    MappedByteBuffer mapped;
+
+    /** Buffer for encoding a vector. */
+    byte[] encoded = new byte[1024];
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Opens the forward index in the directory <code>dir</code>. If
+     *  <code>load</code> is true, the vectors and terms saved there are
+     *  loaded (the terms are added to <code>terms</code>, which must be
+     *  empty); otherwise a new, empty forward index is started.
+     */
+    public ForwardIndex( File dir, TermDictionary terms, boolean load ) throws IOException {
+        this.dir = dir;
+        this.terms = terms;
+        Arrays.fill( offsets, -1 );
+        File dataFile = new File( dir, DATA_FNAME );
+        if ( load && !dataFile.exists() ) {
+            System.err.println( "Warning: no forward index in " + dir );
+            load = false;
+        }
+        if ( !load ) {
+            dataFile.delete();
+        }
+        data = new RandomAccessFile( dataFile, "rw" ).getChannel();
+        dataSize = data.size();
+        if ( load ) {
+            readOffsets();
+            readTerms();
+            countDocFrequencies();
+        }
+    }
+
+
+    /**
+     *  Adds the vector of a document, given the termIDs of all its tokens.
+     *  The first <code>n</code> elements of <code>tokens</code> are used
+     *  (and left sorted).
+     */
+    public synchronized void add( int docID, int[] tokens, int n ) {
+        Arrays.sort( tokens, 0, n );
+        int distinct = 0;
+        for ( int i=0; i<n; i++ ) {
+            if ( i == 0 || tokens[i] != tokens[i-1] ) distinct++;
+        }
+        int len = writeVInt( 0, distinct );
+        int prev = 0;
+        if ( n > 0 && tokens[n-1] >= df.length ) {
+            df = Arrays.copyOf( df, Math.max( 2*df.length, tokens[n-1]+1 ));
+        }
+        for ( int i=0; i<n; ) {
+            int j = i;
+            while ( j < n && tokens[j] == tokens[i] ) j++;
+            df[tokens[i]]++;
+            len = writeVInt( len, tokens[i] - prev );
+            len = writeVInt( len, j - i );
+            prev = tokens[i];
+            i = j;
+        }
+        try {
+            ByteBuffer bb = ByteBuffer.wrap( encoded, 0, len );
+            long ptr = dataSize;
+            while ( bb.hasRemaining() ) {
+                ptr += data.write( bb, ptr );
+            }
+            if ( docID >= offsets.length ) {
+                int oldLength = offsets.length;
+                offsets = Arrays.copyOf( offsets, Math.max( 2*oldLength, docID+1 ));
+                Arrays.fill( offsets, oldLength, offsets.length, -1 );
+            }
+            offsets[docID] = dataSize;
+            dataSize = ptr;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     *  Returns the vector of the document, or null if it is not in the
+     *  forward index.
+     */
+    public synchronized Vector get( int docID ) {
+        if ( docID < 0 || docID >= offsets.length || offsets[docID] < 0 ) {
+            return null;
+        }
+        try {
+            if ( mapped == null || mapped.capacity() < dataSize ) {
+                mapped = data.map( FileChannel.MapMode.READ_ONLY, 0, dataSize );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            return null;
+        }
+        ByteBuffer in = mapped.duplicate();
+        in.position( (int)offsets[docID] );
+        int size = readVInt( in );
+        int[] termIDs = new int[size];
+        int[] counts = new int[size];
+        int termID = 0;
+        for ( int i=0; i<size; i++ ) {
+            termID += readVInt( in );
+            termIDs[i] = termID;
+            counts[i] = readVInt( in );
+        }
+        return new Vector( termIDs, counts, size );
+    }
+
+
+    /**
+     *  Returns the number of documents in the forward index containing
+     *  the term.
+     */
+    public synchronized int docFrequency( int termID ) {
+        return termID >= 0 && termID < df.length ? df[termID] : 0;
+    }
+
+
+    /**
+     *  Writes the offsets and the terms, so that the forward index can be
+     *  loaded together with a persistent index.
+     */
+    public synchronized void save() {
+        try {
+            data.force( false );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( new File( dir, OFFSETS_FNAME ))));
+            out.writeInt( offsets.length );
+            for ( long offset : offsets ) {
+                out.writeLong( offset );
+            }
+            out.close();
+            Writer w = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( new File( dir, TERMS_FNAME )), StandardCharsets.UTF_8 ));
+            int n = terms.size();
+            for ( int id=0; id<n; id++ ) {
+                w.write( terms.term( id ));
+                w.write( '\n' );
+            }
+            w.close();
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     *  Creates an empty forward index in a temporary directory, which is
+     *  deleted on exit (used with in-memory indexes).
+     */
+    public static ForwardIndex createTemporary( TermDictionary terms ) throws IOException {
+        File dir = File.createTempFile( "forward", "" );
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        new File( dir, DATA_FNAME ).deleteOnExit();
+        return new ForwardIndex( dir, terms, false );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    private void readOffsets() throws IOException {
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( new File( dir, OFFSETS_FNAME ))));
+        offsets = new long[in.readInt()];
+        for ( int i=0; i<offsets.length; i++ ) {
+            offsets[i] = in.readLong();
+        }
+        in.close();
+    }
+
+
+    private void countDocFrequencies() {
+        df = new int[Math.max( 1024, terms.size() )];
+        for ( int docID=0; docID<offsets.length; docID++ ) {
+            Vector v = get( docID );
+            if ( v != null ) {
+                for ( int i=0; i<v.size; i++ ) {
+                    df[v.termIDs[i]]++;
+                }
+            }
+        }
+    }
+
+
+    private void readTerms() throws IOException {
+        BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( new File( dir, TERMS_FNAME )), StandardCharsets.UTF_8 ));
+        String line;
+        while (( line = in.readLine()) != null ) {
+            terms.lookupOrAdd( line );
+        }
+        in.close();
+    }
+
+
+    private int writeVInt( int pos, int value ) {
+        if ( pos + 5 > encoded.length ) {
+            encoded = Arrays.copyOf( encoded, 2*encoded.length );
+        }
+        while (( value & ~0x7f ) != 0 ) {
+            encoded[pos++] = (byte)(( value & 0x7f ) | 0x80 );
+            value >>>= 7;
+        }
+        encoded[pos++] = (byte)value;
+        return pos;
+    }
+
+
+    private static int readVInt( ByteBuffer in ) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= ( b & 0x7f ) << shift;
+            shift += 7;
+        } while ( b < 0 );
+        return value;
+    }
+}
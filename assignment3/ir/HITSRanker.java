@@ -39,7 +39,6 @@ public class HITSRanker {
      *   Mapping from the titles to internal document ids used in the links file
      */
     HashMap<String,Integer> titleToId = new HashMap<String,Integer>();
-    HashMap<Integer,String> IdToTitle = new HashMap<Integer,String>();
 
     /**
      *   Mapping from document names to document numbers.
@@ -49,25 +48,46 @@ public class HITSRanker {
     /**
      *   Mapping from document numbers to document names
      */
-    String[] docName = new String[MAX_NUMBER_OF_DOCS];
+    String[] docName;
 
     /**
-     *   Sparse vector containing hub scores
+     *   Hub scores, by document number
      */
-    HashMap<Integer,Double> hubs = new HashMap<Integer, Double>();
+    double[] hubs;
 
     /**
-     *   Sparse vector containing authority scores
+     *   Authority scores, by document number
      */
-    HashMap<Integer,Double> authorities = new HashMap<Integer, Double>();
+    double[] authorities;
 
-    HashMap<Integer,HashMap<Integer,Boolean>> link = new HashMap<Integer,HashMap<Integer,Boolean>>();
+    /**
+     *   The links between the documents, by document number
+     */
+    LinkGraph subgraph;
 
-    int[] out = new int[MAX_NUMBER_OF_DOCS];
+    /**
+     *   Number of iterations done by the last call to iterate()
+     */
+    int steps;
 
     PostingsList queryList;
 
     int nDocs;
+
+    /**
+     *   The link graph the base set is taken from
+     */
+    DocumentLinks links;
+
+    /**
+     *   The directory of the documents in the link graph
+     */
+    String directory;
+
+    /**
+     *   The nodes of the link graph in the base set, by document number
+     */
+    int[] baseNode;
     
     /* --------------------------------------------- */
 
@@ -95,16 +115,37 @@ public class HITSRanker {
     public HITSRanker( String linksFilename, String titlesFilename, Index index, PostingsList queryList ) {
         this.index = index;
         this.queryList = queryList;
-        this.index = index;
         if (this.queryList == null) {
             int noOfDocs = readDocs( linksFilename, titlesFilename );
             rank(noOfDocs);
         } else {
-            nDocs = readListDocs( linksFilename, titlesFilename, queryList );
+            try {
+                links = DocumentLinks.read( linksFilename, titlesFilename );
+                nDocs = readBaseSet( queryList );
+            } catch ( IOException e ) {
+                System.err.println( "Error reading file" );
+            }
         }
     }
 
 
+    /**
+     * Constructs the HITSRanker object for the documents in the postings
+     * list, using a link graph which has already been read (and which can
+     * be shared by any number of queries).
+     *
+     * @param      links      The link graph of the indexed documents
+     * @param      index      The inverted index
+     * @param      queryList  The documents matching the query
+     */
+    public HITSRanker( DocumentLinks links, Index index, PostingsList queryList ) {
+        this.index = index;
+        this.queryList = queryList;
+        this.links = links;
+        nDocs = readBaseSet( queryList );
+    }
+
+
     /* --------------------------------------------- */
 
     /**
@@ -135,44 +176,15 @@ public class HITSRanker {
         int fileIndex = 0;
         try {
             System.err.print( "Reading file... " );
-            BufferedReader in = new BufferedReader( new FileReader( linksFilename ));
-            String line;
-            while ((line = in.readLine()) != null && fileIndex<MAX_NUMBER_OF_DOCS ) {
-                int index = line.indexOf( ";" );
-                String title = line.substring( 0, index );
-                Integer fromdoc = docNumber.get( title );
-
-                //  Have we seen this document before?
-                if ( fromdoc == null ) {	
-                    // This is a previously unseen doc, so add it to the table.
-                    fromdoc = fileIndex++;
-                    docNumber.put( title, fromdoc );
-                    docName[fromdoc] = title;
-                }
-                // Check all outlinks.
-                StringTokenizer tok = new StringTokenizer( line.substring(index+1), "," );
-                while ( tok.hasMoreTokens() && fileIndex<MAX_NUMBER_OF_DOCS ) {
-                    String otherTitle = tok.nextToken();
-                    Integer otherDoc = docNumber.get( otherTitle );
-                    if ( otherDoc == null ) {
-                        // This is a previousy unseen doc, so add it to the table.
-                        otherDoc = fileIndex++;
-                        docNumber.put( otherTitle, otherDoc );
-                        docName[otherDoc] = otherTitle;
-                    }
-                    // Set the probability to 0 for now, to indicate that there is
-		            // a link from fromdoc to otherDoc.
-		            if ( link.get(fromdoc) == null ) {
-                        link.put(fromdoc, new HashMap<Integer,Boolean>());
-                    }
-                    if ( link.get(fromdoc).get(otherDoc) == null ) {
-                        link.get(fromdoc).put( otherDoc, true );
-                        out[fromdoc]++;
-                    }
-                }
+            subgraph = LinkGraph.read( linksFilename, MAX_NUMBER_OF_DOCS );
+            docName = subgraph.nodeName;
+            fileIndex = subgraph.numberOfNodes;
+            for (int i = 0; i < fileIndex; i++) {
+                docNumber.put( docName[i], i );
             }
 
-            in = new BufferedReader( new FileReader( titlesFilename ) );
+            BufferedReader in = new BufferedReader( new FileReader( titlesFilename ) );
+            String line;
             while ((line = in.readLine()) != null) {
                 int index = line.indexOf(";");
                 int docID = Integer.parseInt(line.substring(0, index));
@@ -187,100 +199,86 @@ public class HITSRanker {
         return fileIndex;
     }
 
-    private int realIDtoInnerID( int id ) {
-        if (titleToId.get(getFileName(index.docNames.get(id))) == null) System.err.println("It be that way sometimes");
-        return titleToId.get(getFileName(index.docNames.get(id)));
-    }
-
-    private Integer innerIDToRealID( int id ) {
-        String path = "./davisWiki/" + IdToTitle.get(id);
-        return index.docIDs.get(path);
-    }
-
-    int readListDocs( String linksFilename, String titlesFilename, PostingsList list ) {
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( titlesFilename ) );
-            String line;
-            while ((line = in.readLine()) != null) {
-                int index = line.indexOf(";");
-                int docID = Integer.parseInt(line.substring(0, index));
-                String title = line.substring(index + 1);
-                titleToId.put(title, docID);
-                IdToTitle.put(docID, title);
-            }
-        }
-        catch ( IOException e ) {
-            System.err.println( "Error reading file" );
-        }
+    /**
+     * Takes the subgraph of the base set from the link graph: the root set
+     * (the documents in the postings list), the documents linking to or
+     * from the root set, and the links which start or end in the root set.
+     * Only the links of the root set are looked at, so the time is
+     * proportional to the size of the base set, not of the whole graph.
+     *
+     * @param      list  The documents matching the query
+     *
+     * @return     The number of documents in the base set
+     */
+    int readBaseSet( PostingsList list ) {
+        LinkGraph graph = links.graph;
+        LinkGraph inLinks = links.inLinks;
 
-        HashSet<Integer> sigID = new HashSet<Integer>();
+        // The root set, numbered first
+        HashMap<Integer,Integer> localNumber = new HashMap<Integer,Integer>();
+        int[] node = new int[Math.max(16, list.size())];
+        int fileIndex = 0;
         for (int i = 0; i < list.size(); i++) {
-            sigID.add(realIDtoInnerID(list.get(i).docID));
+            int docID = list.get(i).docID;
+            int u = links.node(index, docID);
+            if (u < 0 || localNumber.containsKey(u)) continue;
+            if (directory == null) {
+                directory = new File(index.docNames.get(docID)).getParent();
+            }
+            localNumber.put(u, fileIndex);
+            node[fileIndex++] = u;
         }
-
-        int fileIndex = 0;
-        try {
-            System.err.print( "Reading file... " );
-            BufferedReader in = new BufferedReader( new FileReader( linksFilename ));
-            String line;
-            while ((line = in.readLine()) != null && fileIndex<MAX_NUMBER_OF_DOCS ) {
-                int index = line.indexOf( ";" );
-                String title = line.substring( 0, index );
-                Integer fromdoc = docNumber.get( title );
-
-                if (sigID.contains(Integer.parseInt(title))) {
-                    //  Have we seen this document before?
-                    if ( fromdoc == null ) {	
-                        // This is a previously unseen doc, so add it to the table.
-                        fromdoc = fileIndex++;
-                        docNumber.put( title, fromdoc );
-                        docName[fromdoc] = title;
-                    }
-                }
-
-                // Check all outlinks.
-                StringTokenizer tok = new StringTokenizer( line.substring(index+1), "," );
-                while ( tok.hasMoreTokens() && fileIndex<MAX_NUMBER_OF_DOCS ) {
-                    String otherTitle = tok.nextToken();
-                    Integer otherDoc = docNumber.get( otherTitle );
-
-                    if ( !sigID.contains(Integer.parseInt(title)) && !sigID.contains(Integer.parseInt(otherTitle)) ) continue;
-
-                    //  Have we seen this document before?
-                    if ( fromdoc == null ) {	
-                        // This is a previously unseen doc, so add it to the table.
-                        fromdoc = fileIndex++;
-                        docNumber.put( title, fromdoc );
-                        docName[fromdoc] = title;
-                    }
-
-                    if ( otherDoc == null ) {
-                        // This is a previousy unseen doc, so add it to the table.
-                        otherDoc = fileIndex++;
-                        docNumber.put( otherTitle, otherDoc );
-                        docName[otherDoc] = otherTitle;
-                    }
-                    // Set the probability to 0 for now, to indicate that there is
-                    // a link from fromdoc to otherDoc.
-		            if ( link.get(fromdoc) == null ) {
-                        link.put(fromdoc, new HashMap<Integer,Boolean>());
-                    }
-                    if ( link.get(fromdoc).get(otherDoc) == null ) {
-                        link.get(fromdoc).put( otherDoc, true );
-                        out[fromdoc]++;
+        int rootSize = fileIndex;
+
+        // The base set adds the neighbours of the root set
+        for (int a = 0; a < rootSize; a++) {
+            int u = node[a];
+            for (LinkGraph g : new LinkGraph[] { graph, inLinks }) {
+                for (int k = g.rowPtr[u]; k < g.rowPtr[u+1]; k++) {
+                    int v = g.colIdx[k];
+                    if (!localNumber.containsKey(v)) {
+                        if (fileIndex == node.length) node = Arrays.copyOf(node, 2*fileIndex);
+                        localNumber.put(v, fileIndex);
+                        node[fileIndex++] = v;
                     }
                 }
             }
         }
-        catch ( IOException e ) {
-            System.err.println( "Error reading file" );
+
+        docName = new String[fileIndex];
+        for (int a = 0; a < fileIndex; a++) {
+            docName[a] = graph.nodeName[node[a]];
+            docNumber.put(docName[a], a);
         }
-        System.err.println( "Read " + fileIndex + " number of documents" );
+        int numberOfLinks = 0;
+        for (int a = 0; a < rootSize; a++) {
+            numberOfLinks += graph.outDegree(node[a]) + inLinks.outDegree(node[a]);
+        }
+        int[] from = new int[numberOfLinks];
+        int[] to = new int[numberOfLinks];
+        int m = 0;
+        for (int a = 0; a < rootSize; a++) {
+            int u = node[a];
+            for (int k = graph.rowPtr[u]; k < graph.rowPtr[u+1]; k++) {
+                from[m] = a;
+                to[m++] = localNumber.get(graph.colIdx[k]);
+            }
+            for (int k = inLinks.rowPtr[u]; k < inLinks.rowPtr[u+1]; k++) {
+                from[m] = localNumber.get(inLinks.colIdx[k]);
+                to[m++] = a;
+            }
+        }
+        // Links within the root set were taken twice; fromEdges drops the duplicates
+        subgraph = LinkGraph.fromEdges(fileIndex, from, to, m, docName, docNumber);
+        baseNode = Arrays.copyOf(node, fileIndex);
         return fileIndex;
     }
 
     /**
-     * Perform HITS iterations until convergence
+     * Perform HITS iterations until convergence. Every iteration is two
+     * sparse matrix-vector products over the links of the subgraph,
+     * hubs = A auth and auth = A^T hubs, so it takes time proportional
+     * to the number of links.
      *
      */
     private void iterate(int noOfDocs) {
@@ -290,20 +288,31 @@ public class HITSRanker {
         double[] y = new double[noOfDocs];
         double[] yPrime = new double[noOfDocs]; Arrays.fill(yPrime, 1);
 
+        int[] rowPtr = subgraph.rowPtr;
+        int[] colIdx = subgraph.colIdx;
         int step = 0;
         while (!diffLessThanEpsilon(x, xPrime, y, yPrime) && step < MAX_NUMBER_OF_STEPS) {
             step++;
-            x = xPrime; y = yPrime;
-            xPrime = multiplyWithTransition(y, true);
-            yPrime = multiplyWithTransition(x, false);
-            xPrime = normalize(xPrime);
-            yPrime = normalize(yPrime);
+            // Reuse the arrays of the previous step for the next scores
+            double[] t = x; x = xPrime; xPrime = t;
+            t = y; y = yPrime; yPrime = t;
+            Arrays.fill(xPrime, 0);
+            Arrays.fill(yPrime, 0);
+            for (int i = 0; i < noOfDocs; i++) {
+                double hub = 0;
+                for (int k = rowPtr[i]; k < rowPtr[i+1]; k++) {
+                    hub += y[colIdx[k]];
+                    yPrime[colIdx[k]] += x[i];
+                }
+                xPrime[i] = hub;
+            }
+            normalize(xPrime);
+            normalize(yPrime);
         }
+        steps = step;
 
-        for (int i = 0; i < noOfDocs; i++) {
-            authorities.put(Integer.parseInt(docName[i]), yPrime[i]);
-            hubs.put(Integer.parseInt(docName[i]), xPrime[i]);
-        }
+        hubs = xPrime;
+        authorities = yPrime;
     }
 
 	private boolean diffLessThanEpsilon( double[] x, double[] xPrime, double[] y, double[] yPrime ) {
@@ -313,42 +322,22 @@ public class HITSRanker {
         }
         return true;
     }
-    
-	private double[] multiplyWithTransition( double[] xPrime, boolean transpose ) {
-		double[] result = new double[xPrime.length];
-
-        for (int i = 0; i < xPrime.length; i++) {
-            double indexValue = 0;
-            for (int j = 0; j < xPrime.length; j++) {
-                if (transpose) indexValue += calcTransitionVal(i, j) * xPrime[j];
-                else           indexValue += calcTransitionVal(j, i) * xPrime[j];
-            }
-            result[i] = indexValue;
-        }
 
-        return result;
-    }
-    
-	private int calcTransitionVal( int i, int j ) {		
-        if (out[i] == 0) return 0;
-		Boolean val = link.get(i).get(j);
-		if (val == null) return 0;
-		else 			 return 1;
-	}
-
-    private double[] normalize( double[] vec ) {
-        double[] res = new double[vec.length];
+    /**
+     * Scales the vector to unit length, in place (a zero vector is left as it is).
+     */
+    private void normalize( double[] vec ) {
         //Calculate length
         double length = 0;
         for (int i = 0; i < vec.length; i++) {
-            length += Math.pow(vec[i], 2);
+            length += vec[i] * vec[i];
         }
         length = Math.sqrt(length);
+        if (length == 0) return;
         //Normalize
         for (int i = 0; i < vec.length; i++) {
-            res[i] = vec[i] / length;
+            vec[i] /= length;
         }
-        return res;
     }
 
     /**
@@ -361,20 +350,23 @@ public class HITSRanker {
      */
     PostingsList rank() {
         iterate(nDocs);
-        HashMap<Integer,Double> sortedHubs = sortHashMapByValue(hubs);
-        HashMap<Integer,Double> sortedAuthorities = sortHashMapByValue(authorities);
 
-        for (Map.Entry<Integer,Double> entry : sortedHubs.entrySet()) {
-            entry.setValue(entry.getValue() + sortedAuthorities.get(entry.getKey()));
+        // Add the indexed documents in docID order, so that every add is an append
+        long[] order = new long[nDocs];
+        int m = 0;
+        for (int i = 0; i < nDocs; i++) {
+            int realID = links.docID(index, baseNode[i], directory);
+            if (realID < 0) continue;
+            order[m++] = ((long)realID << 32) | i;
         }
-        sortedHubs = sortHashMapByValue(sortedHubs);
+        Arrays.sort(order, 0, m);
 
         PostingsList newList = new PostingsList();
-        for (Map.Entry<Integer,Double> entry : sortedHubs.entrySet()) {
-            Integer realID = innerIDToRealID(entry.getKey());
-            if (realID == null) continue;
+        for (int j = 0; j < m; j++) {
+            int realID = (int)(order[j] >>> 32);
+            int i = (int)order[j];
             newList.add(realID, 0);
-            newList.setScore(realID, entry.getValue());
+            newList.setScore(realID, hubs[i] + authorities[i]);
         }
 
         return newList;
@@ -382,51 +374,72 @@ public class HITSRanker {
 
 
     /**
-     * Sort a hash map by values in the descending order
+     * Selects the k highest scores with a min-heap of size k.
      *
-     * @param      map    A hash map to sorted
+     * @param      score  The scores, by document number
+     * @param      k      The number of documents to select
      *
-     * @return     A hash map sorted by values
+     * @return     The document numbers of the k highest scores, highest first
      */
-    private HashMap<Integer,Double> sortHashMapByValue(HashMap<Integer,Double> map) {
-        if (map == null) {
-            return null;
-        } else {
-            List<Map.Entry<Integer,Double> > list = new ArrayList<Map.Entry<Integer,Double> >(map.entrySet());
-      
-            Collections.sort(list, new Comparator<Map.Entry<Integer,Double>>() {
-                public int compare(Map.Entry<Integer,Double> o1, Map.Entry<Integer,Double> o2) { 
-                    return (o2.getValue()).compareTo(o1.getValue()); 
-                } 
-            }); 
-              
-            HashMap<Integer,Double> res = new LinkedHashMap<Integer,Double>(); 
-            for (Map.Entry<Integer,Double> el : list) { 
-                res.put(el.getKey(), el.getValue()); 
+    static int[] topK( double[] score, int k ) {
+        k = Math.min(k, score.length);
+        int[] heap = new int[k];
+        int size = 0;
+        for (int i = 0; i < score.length; i++) {
+            if (size < k) {
+                // Sift up
+                int pos = size++;
+                while (pos > 0 && score[heap[(pos - 1) / 2]] > score[i]) {
+                    heap[pos] = heap[(pos - 1) / 2];
+                    pos = (pos - 1) / 2;
+                }
+                heap[pos] = i;
+            } else if (score[i] > score[heap[0]]) {
+                siftDown(score, heap, size, i);
+            }
+        }
+        // Take out the smallest one at a time, filling the array from the back
+        int[] top = new int[k];
+        while (size > 0) {
+            top[size - 1] = heap[0];
+            size--;
+            if (size > 0) {
+                siftDown(score, heap, size, heap[size]);
+            }
+        }
+        return top;
+    }
+
+    /** Puts document i at the root of the heap and sifts it down. */
+    private static void siftDown( double[] score, int[] heap, int size, int i ) {
+        int pos = 0;
+        while (2 * pos + 1 < size) {
+            int child = 2 * pos + 1;
+            if (child + 1 < size && score[heap[child + 1]] < score[heap[child]]) {
+                child++;
             }
-            return res;
+            if (score[heap[child]] >= score[i]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
         }
-    } 
+        heap[pos] = i;
+    }
 
 
     /**
-     * Write the first `k` entries of a hash map `map` to the file `fname`.
+     * Write the `k` highest scores to the file `fname`.
      *
-     * @param      map        A hash map
+     * @param      score      The scores, by document number
      * @param      fname      The filename
      * @param      k          A number of entries to write
      */
-    void writeToFile(HashMap<Integer,Double> map, String fname, int k) {
+    void writeToFile(double[] score, String fname, int k) {
         try {
             BufferedWriter writer = new BufferedWriter(new FileWriter(fname));
-            
-            if (map != null) {
-                int i = 0;
-                for (Map.Entry<Integer,Double> e : map.entrySet()) {
-                    i++;
-                    writer.write(e.getKey() + ": " + String.format("%.5g%n", e.getValue()));
-                    if (i >= k) break;
-                }
+            for (int i : topK(score, k)) {
+                writer.write(docName[i] + ": " + String.format("%.5g%n", score[i]));
             }
             writer.close();
         } catch (IOException e) {}
@@ -439,11 +452,11 @@ public class HITSRanker {
      *  authorities_top_30.txt with documents containing top 30 authority scores
      */
     void rank( int noOfDocs ) {
+        long startTime = System.currentTimeMillis();
         iterate(noOfDocs);
-        HashMap<Integer,Double> sortedHubs = sortHashMapByValue(hubs);
-        HashMap<Integer,Double> sortedAuthorities = sortHashMapByValue(authorities);
-        writeToFile(sortedHubs, "hubs_top_30.txt", 30);
-        writeToFile(sortedAuthorities, "authorities_top_30.txt", 30);
+        System.err.println( "HITS converged in " + steps + " iterations, " + ( System.currentTimeMillis() - startTime ) + " ms" );
+        writeToFile(hubs, "hubs_top_30.txt", 30);
+        writeToFile(authorities, "authorities_top_30.txt", 30);
     }
 
 
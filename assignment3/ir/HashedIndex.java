@@ -8,32 +8,62 @@
 
 package ir;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 
 
 /**
- *   Implements an inverted index as a Hashtable from words to PostingsLists.
+ *   Implements an inverted index as an array of PostingsLists, indexed
+ *   by the termIDs of a TermDictionary.
  */
 public class HashedIndex implements Index {
 
 
-    /** The index as a hashtable. */
-    private HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
+    /** The dictionary mapping terms to termIDs. */
+    final TermDictionary terms;
+
+    /** The postings lists, by termID (null for terms not in this index). */
+    private PostingsList[] index = new PostingsList[1024];
+
+    /** Number of terms in this index. */
+    private int numberOfTerms = 0;
+
+    /** Number of documents in this index, when it is a segment (see Indexer). */
+    int numberOfDocs = 0;
+
+
+    /** Creates an index with its own term dictionary. */
+    public HashedIndex() {
+        this( new TermDictionary() );
+    }
+
+    /** Creates an index using the given (shared) term dictionary. */
+    public HashedIndex( TermDictionary terms ) {
+        this.terms = terms;
+    }
 
     /**
-     *  Inserts this token in the hashtable.
+     *  Inserts this token in the index.
      */
     public void insert( String token, int docID, int offset ) {
-        PostingsList list = index.get(token);
-        if (list != null) {
-            list.add(docID, offset);
-            index.put(token, list);
-        } else {
-            PostingsList newList = new PostingsList();
-            newList.add(docID, offset);
-            index.put(token, newList);
+        insert( terms.lookupOrAdd( token ), docID, offset );
+    }
+
+    /**
+     *  Inserts the term with the given termID in the index.
+     */
+    public void insert( int termID, int docID, int offset ) {
+        if (termID >= index.length) {
+            index = Arrays.copyOf(index, Math.max(2 * index.length, termID + 1));
+        }
+        PostingsList list = index[termID];
+        if (list == null) {
+            list = new PostingsList();
+            index[termID] = list;
+            numberOfTerms++;
         }
+        list.add(docID, offset);
     }
 
     /**
@@ -41,8 +71,54 @@ public class HashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-        if (index.get(token) != null) return index.get(token);
-        return null;
+        return getPostings( terms.lookup( token ) );
+    }
+
+    /**
+     *  Returns the postings for the term with the given termID, or null
+     *  if the term is not in the index.
+     */
+    public PostingsList getPostings( int termID ) {
+        PostingsList[] lists = index;
+        if (termID < 0 || termID >= lists.length) return null;
+        return lists[termID];
+    }
+
+    /** Returns the termIDs of the terms in this index, in increasing order. */
+    public int[] termIDs() {
+        int[] ids = new int[numberOfTerms];
+        int n = 0;
+        for (int id = 0; id < index.length && n < ids.length; id++) {
+            if (index[id] != null) ids[n++] = id;
+        }
+        return ids;
+    }
+
+    /**
+     *  Merges segments with increasing docIDs into one new index,
+     *  leaving out the deleted documents. The segments must share
+     *  the same term dictionary.
+     */
+    public static HashedIndex merge( List<HashedIndex> segments, Set<Integer> deletedDocs ) {
+        HashedIndex merged = new HashedIndex(segments.get(0).terms);
+        merged.index = new PostingsList[merged.terms.size()];
+        for (HashedIndex segment : segments) {
+            for (int id = 0; id < segment.index.length; id++) {
+                PostingsList list = segment.index[id];
+                if (list == null) continue;
+                if (merged.index[id] == null) {
+                    merged.index[id] = new PostingsList();
+                }
+                merged.index[id].append(list, deletedDocs);
+            }
+        }
+        for (int id = 0; id < merged.index.length; id++) {
+            if (merged.index[id] != null) {
+                if (merged.index[id].size() == 0) merged.index[id] = null;
+                else merged.numberOfTerms++;
+            }
+        }
+        return merged;
     }
 
     /**
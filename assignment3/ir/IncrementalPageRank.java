@@ -0,0 +1,401 @@
+package ir;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+
+/**
+ *   Updates PageRank after a small change of the link graph, starting
+ *   from the ranks of the old graph instead of from scratch.
+ *
+ *   The ranks x are the fixed point of x = Gx, where G is the transition
+ *   matrix of PageRankSparse (follow a link with probability 1-BORED,
+ *   jump anywhere otherwise or from a dangling node). The jumps add the
+ *   same amount s to every node, so up to normalization x is also the
+ *   solution of x = (1-BORED) Wx + s for any fixed s, where W only
+ *   follows links. The update keeps the s of the old ranks. The old
+ *   ranks nearly satisfy this for the new graph: the residual is only
+ *   non-zero at the targets of the nodes whose links changed, and at
+ *   the new nodes, which get s but have no rank yet. The
+ *   residual is removed by pushing: a node with residual r gets r added
+ *   to its rank, and (1-BORED) r is passed on to the residuals of the
+ *   nodes it links to, split evenly. The rest is spread over all nodes;
+ *   that part sums to minus the remaining residual, which is small, and
+ *   is accounted for by normalizing the ranks at the end. Only nodes
+ *   whose residual exceeds a threshold are pushed, so only the region
+ *   around the change is touched.
+ *
+ *   The error of the result (in L1 norm) is at most about twice the
+ *   remaining residual divided by BORED, plus the error of the old
+ *   ranks. If the change reaches too much of the graph for the pushes
+ *   to pay off, the ranks are instead computed by the power iteration,
+ *   started from the pushed ranks.
+ *
+ *   How far a change reaches depends on the tolerance. In a well
+ *   connected graph, a tolerance much below the error of the old ranks
+ *   (up to about ten times PageRankSparse.EPSILON for ranks saved by
+ *   PageRankSparse) spreads the pushes over most of the graph, and the
+ *   update becomes a warm-started full iteration which is no more
+ *   accurate. The default, DEFAULT_TOLERANCE, is of the order of that
+ *   error, so that small deltas are handled by pushing alone.
+ *
+ *   A delta file has one line per changed node:
+ *   <code>+nodeID;outNodeID1,...</code> adds links and
+ *   <code>-nodeID;outNodeID1,...</code> removes them. Added links may
+ *   name new nodes.
+ */
+public class IncrementalPageRank {
+
+    /**
+     *   If pushing has scanned more than this many times the links and
+     *   nodes of the graph, the warm-started power iteration is used.
+     *   That takes several such scans as well, so pushing is allowed a few.
+     */
+    static final int MAX_WORK = 4;
+
+    /** The default tolerance: about the error of ranks saved by PageRankSparse. */
+    static final double DEFAULT_TOLERANCE = 1e-3;
+
+    /** The full recompute of -check iterates until the ranks change less than this. */
+    static final double CHECK_EPSILON = 1e-12;
+
+    /** The changed graph. */
+    LinkGraph graph;
+
+    /** The ranks, by node number of the changed graph. */
+    double[] x;
+
+    /** The residuals. */
+    double[] r;
+
+    /** Nodes whose links were changed, with their links before the change. */
+    HashMap<Integer,int[]> oldLinks = new HashMap<Integer,int[]>();
+
+    /** Number of nodes before the change. */
+    int oldNumberOfNodes;
+
+    /** Number of pushes done by update(). */
+    int pushes;
+
+    /** Number of distinct nodes pushed by update(). */
+    int touched;
+
+    /** The L1 norm of the residual left by update(). */
+    double residual;
+
+    /** Whether update() fell back to the power iteration. */
+    boolean fellBack;
+
+    /** The amount the random jumps added to every node of the old graph. */
+    double jump;
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *   Applies the changes in the delta file to the graph. The new nodes
+     *   are added to the name map of the old graph, which is shared with
+     *   the changed graph (copying it would take longer than the update).
+     */
+    public IncrementalPageRank( LinkGraph old, String deltaFile ) throws IOException {
+        oldNumberOfNodes = old.numberOfNodes;
+        HashMap<String,Integer> nodeNumber = old.nodeNumber;
+        ArrayList<String> nodeName = new ArrayList<String>( Arrays.asList( old.nodeName ));
+        HashMap<Integer,TreeSet<Integer>> newLinks = new HashMap<Integer,TreeSet<Integer>>();
+        try ( BufferedReader in = new BufferedReader( new FileReader( deltaFile ))) {
+            String line;
+            while (( line = in.readLine()) != null ) {
+                int index = line.indexOf( ';' );
+                if ( line.length() < 2 || index < 0 || ( line.charAt( 0 ) != '+' && line.charAt( 0 ) != '-' )) {
+                    continue;
+                }
+                boolean add = line.charAt( 0 ) == '+';
+                Integer from = number( line.substring( 1, index ), add, nodeNumber, nodeName );
+                if ( from == null ) {
+                    continue;
+                }
+                TreeSet<Integer> links = newLinks.get( from );
+                if ( links == null ) {
+                    links = new TreeSet<Integer>();
+                    if ( from < old.numberOfNodes ) {
+                        for ( int k=old.rowPtr[from]; k<old.rowPtr[from+1]; k++ ) {
+                            links.add( old.colIdx[k] );
+                        }
+                        oldLinks.put( from, Arrays.copyOfRange( old.colIdx, old.rowPtr[from], old.rowPtr[from+1] ));
+                    } else {
+                        oldLinks.put( from, new int[0] );
+                    }
+                    newLinks.put( from, links );
+                }
+                for ( String to : line.substring( index + 1 ).split( "," )) {
+                    if ( to.isEmpty() ) {
+                        continue;
+                    }
+                    Integer t = number( to, add, nodeNumber, nodeName );
+                    if ( t == null ) {
+                        continue;
+                    }
+                    if ( add ) {
+                        links.add( t );
+                    } else {
+                        links.remove( t );
+                    }
+                }
+            }
+        }
+        // The CSR form of the changed graph, with the new nodes last
+        int n = nodeName.size();
+        int numberOfEdges = old.numberOfEdges();
+        for ( int i : newLinks.keySet() ) {
+            numberOfEdges += newLinks.get( i ).size() - oldLinks.get( i ).length;
+        }
+        int[] rowPtr = new int[n+1];
+        int[] colIdx = new int[numberOfEdges];
+        int k = 0;
+        for ( int i=0; i<n; i++ ) {
+            rowPtr[i] = k;
+            TreeSet<Integer> links = newLinks.get( i );
+            if ( links != null ) {
+                for ( int t : links ) {
+                    colIdx[k++] = t;
+                }
+            } else if ( i < old.numberOfNodes ) {
+                int length = old.outDegree( i );
+                System.arraycopy( old.colIdx, old.rowPtr[i], colIdx, k, length );
+                k += length;
+            }
+        }
+        rowPtr[n] = k;
+        graph = new LinkGraph( n, rowPtr, colIdx, nodeName.toArray( new String[n] ), nodeNumber );
+    }
+
+
+    /**
+     *   Returns the number of the node, or (if <code>create</code> is
+     *   true) gives it a new number if it is not in the graph.
+     */
+    private static Integer number( String name, boolean create, HashMap<String,Integer> nodeNumber, ArrayList<String> nodeName ) {
+        Integer i = nodeNumber.get( name );
+        if ( i == null && create ) {
+            i = nodeName.size();
+            nodeNumber.put( name, i );
+            nodeName.add( name );
+        }
+        return i;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *   Computes the ranks of the changed graph from the ranks of the old
+     *   graph (<code>old[i]</code> is the rank of node i, which keeps its
+     *   number). The result has an error of at most about
+     *   <code>tolerance</code> more than the old ranks had.
+     */
+    public double[] update( double[] old, double tolerance ) {
+        int n = graph.numberOfNodes;
+        double B = PageRankSparse.BORED;
+        x = Arrays.copyOf( old, n );
+        r = new double[n];
+        // The jumps in the old graph: BORED of all rank, and all rank of dangling nodes
+        double total = 0;
+        double dangling = 0;
+        for ( int i=0; i<oldNumberOfNodes; i++ ) {
+            total += old[i];
+            int[] before = oldLinks.get( i );
+            if (( before != null ? before.length : graph.outDegree( i )) == 0 ) {
+                dangling += old[i];
+            }
+        }
+        jump = ( dangling + B * ( total - dangling )) / oldNumberOfNodes;
+        // The residual Gx - x is the change in what the changed nodes pass on
+        for ( int i : oldLinks.keySet() ) {
+            int[] before = oldLinks.get( i );
+            if ( before.length > 0 ) {
+                double share = ( 1 - B ) * x[i] / before.length;
+                for ( int t : before ) {
+                    r[t] -= share;
+                }
+            }
+            int out = graph.outDegree( i );
+            if ( out > 0 ) {
+                double share = ( 1 - B ) * x[i] / out;
+                for ( int k=graph.rowPtr[i]; k<graph.rowPtr[i+1]; k++ ) {
+                    r[graph.colIdx[k]] += share;
+                }
+            }
+        }
+        // New nodes start from nothing, with the random jump to them as residual
+        for ( int i=oldNumberOfNodes; i<n; i++ ) {
+            r[i] += jump;
+        }
+
+        // Push the residuals in FIFO order
+        double threshold = B * tolerance / n;
+        long maxWork = (long)MAX_WORK * ( graph.numberOfEdges() + n );
+        long work = 0;
+        int[] queue = new int[n];
+        boolean[] queued = new boolean[n];
+        boolean[] pushed = new boolean[n];
+        int head = 0, size = 0;
+        for ( int i=0; i<n; i++ ) {
+            if ( Math.abs( r[i] ) > threshold ) {
+                queue[( head + size++ ) % n] = i;
+                queued[i] = true;
+            }
+        }
+        pushes = 0;
+        touched = 0;
+        while ( size > 0 && work < maxWork ) {
+            int j = queue[head];
+            head = ( head + 1 ) % n;
+            size--;
+            queued[j] = false;
+            double v = r[j];
+            r[j] = 0;
+            x[j] += v;
+            pushes++;
+            if ( !pushed[j] ) {
+                pushed[j] = true;
+                touched++;
+            }
+            int out = graph.outDegree( j );
+            work += out + 1;
+            if ( out == 0 ) {
+                continue;
+            }
+            double share = ( 1 - B ) * v / out;
+            for ( int k=graph.rowPtr[j]; k<graph.rowPtr[j+1]; k++ ) {
+                int t = graph.colIdx[k];
+                r[t] += share;
+                if ( !queued[t] && Math.abs( r[t] ) > threshold ) {
+                    queue[( head + size++ ) % n] = t;
+                    queued[t] = true;
+                }
+            }
+        }
+        residual = 0;
+        double sum = 0;
+        for ( int i=0; i<n; i++ ) {
+            residual += Math.abs( r[i] );
+            x[i] = Math.max( x[i], 0 );
+            sum += x[i];
+        }
+        for ( int i=0; i<n; i++ ) {
+            x[i] /= sum;
+        }
+
+        fellBack = size > 0;
+        if ( fellBack ) {
+            PageRankSparse pr = new PageRankSparse();
+            pr.graph = graph;
+            pr.docName = graph.nodeName;
+            pr.start = x;
+            x = pr.powerIterate( n, 1000 );
+        }
+        return x;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *   Updates saved ranks after a change of the link graph.
+     *
+     *   Usage: IncrementalPageRank [-tol tolerance] [-save ranks_file] [-links links_file] [-check]
+     *          old_links_file old_ranks_file delta_file
+     *
+     *   The tolerance (default DEFAULT_TOLERANCE) is the L1 error allowed
+     *   on top of the error of the old ranks. Much smaller tolerances make
+     *   the update a warm-started full iteration (see the class comment).
+     *   The old ranks are read as written by <code>PageRankSparse -save</code>.
+     *   With -save, the new ranks are written the same way; with -links,
+     *   the changed graph is written as a links file. With -check, the
+     *   ranks of the changed graph (new nodes included) are also computed
+     *   from scratch, and the difference is printed.
+     */
+    public static void main( String[] args ) {
+        double tolerance = DEFAULT_TOLERANCE;
+        String saveFile = null;
+        String linksOut = null;
+        boolean check = false;
+        ArrayList<String> files = new ArrayList<String>();
+        int i = 0;
+        while ( i < args.length ) {
+            if ( args[i].equals( "-tol" ) && i+1 < args.length ) {
+                tolerance = Double.parseDouble( args[i+1] );
+                i += 2;
+            } else if ( args[i].equals( "-save" ) && i+1 < args.length ) {
+                saveFile = args[i+1];
+                i += 2;
+            } else if ( args[i].equals( "-links" ) && i+1 < args.length ) {
+                linksOut = args[i+1];
+                i += 2;
+            } else if ( args[i].equals( "-check" )) {
+                check = true;
+                i++;
+            } else {
+                files.add( args[i++] );
+            }
+        }
+        if ( files.size() != 3 ) {
+            System.err.println( "Usage: IncrementalPageRank [-tol tolerance] [-save ranks_file] [-links links_file] [-check] old_links_file old_ranks_file delta_file" );
+            System.err.println( "  -tol: L1 error allowed on top of that of the old ranks (default " + DEFAULT_TOLERANCE + "); much smaller values fall back to a full iteration" );
+            return;
+        }
+        try {
+            PageRankSparse pr = new PageRankSparse();
+            pr.readDocs( files.get( 0 ));
+            double[] old = pr.loadRanks( files.get( 1 ));
+            long t0 = System.nanoTime();
+            IncrementalPageRank inc = new IncrementalPageRank( pr.graph, files.get( 2 ));
+            long t1 = System.nanoTime();
+            double[] x = inc.update( old, tolerance );
+            long t2 = System.nanoTime();
+            System.err.println( String.format( "%d changed nodes, %d new nodes; delta applied in %.0f ms",
+                                               inc.oldLinks.size(), inc.graph.numberOfNodes - inc.oldNumberOfNodes, ( t1 - t0 ) / 1e6 ));
+            if ( inc.fellBack ) {
+                System.err.println( String.format( "Pushing reached too much of the graph; power iteration used (%.0f ms)", ( t2 - t1 ) / 1e6 ));
+            } else {
+                System.err.println( String.format( "%d pushes on %d nodes in %.0f ms, residual %.2e (error bound %.2e)",
+                                                   inc.pushes, inc.touched, ( t2 - t1 ) / 1e6, inc.residual, 2 * inc.residual / PageRankSparse.BORED ));
+            }
+            pr.graph = inc.graph;
+            pr.docName = inc.graph.nodeName;
+            if ( check ) {
+                int m = inc.graph.numberOfNodes;
+                double[] uniform = new double[m];
+                Arrays.fill( uniform, 1.0 / m );
+                ParallelPageRank parallel = new ParallelPageRank( inc.graph, Runtime.getRuntime().availableProcessors() );
+                double[] full = parallel.iterate( uniform, 1000, CHECK_EPSILON );
+                parallel.shutdown();
+                double error = 0, newError = 0;
+                for ( int j=0; j<full.length; j++ ) {
+                    error += Math.abs( x[j] - full[j] );
+                    if ( j >= inc.oldNumberOfNodes ) {
+                        newError += Math.abs( x[j] - full[j] ) / full[j];
+                    }
+                }
+                System.err.println( String.format( "Full recompute in %d iterations: L1 difference %.2e", parallel.iterations, error ));
+                if ( inc.graph.numberOfNodes > inc.oldNumberOfNodes ) {
+                    System.err.println( String.format( "Mean relative difference at new nodes %.2e", newError / ( inc.graph.numberOfNodes - inc.oldNumberOfNodes )));
+                }
+            }
+            if ( saveFile != null ) {
+                pr.saveRanks( x, saveFile );
+            }
+            if ( linksOut != null ) {
+                inc.graph.write( linksOut );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+}
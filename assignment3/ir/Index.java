@@ -7,8 +7,10 @@
 
 package ir;
 
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *  Defines some common data structures and methods that all types of
@@ -16,13 +18,17 @@ import java.util.Iterator;
  */
 public interface Index {
 
-    /** Mapping from document identifiers to document names. */
-    public HashMap<Integer,String> docNames = new HashMap<Integer,String>();
+    /** 
+     *  Mapping from document identifiers to document names. The document
+     *  maps are written by the indexer while searches read them, so they
+     *  are concurrent maps.
+     */
+    public Map<Integer,String> docNames = new ConcurrentHashMap<Integer,String>();
 
-    public HashMap<String,Integer> docIDs = new HashMap<String,Integer>();
+    public Map<String,Integer> docIDs = new ConcurrentHashMap<String,Integer>();
     
     /** Mapping from document identifier to document length. */
-    public HashMap<Integer,Integer> docLengths = new HashMap<Integer,Integer>();
+    public Map<Integer,Integer> docLengths = new ConcurrentHashMap<Integer,Integer>();
 
     /** Inserts a token into the index. */
     public void insert( String token, int docID, int offset );
@@ -30,6 +36,14 @@ public interface Index {
     /** Returns the postings for a given term. */
     public PostingsList getPostings( String token );
 
+    /** 
+     *  Returns the terms starting with the prefix, or null if the index
+     *  can't enumerate its terms in order.
+     */
+    public default List<String> termsWithPrefix( String prefix ) {
+        return null;
+    }
+
     /** This method is called on exit. */
     public void cleanup();
 
@@ -0,0 +1,128 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ *   An immutable view of the index at one point in time.
+ *
+ *   A snapshot consists of an optional base index (e.g. a persistent
+ *   index loaded from disk), a list of frozen in-memory segments written
+ *   by the indexer, and the set of deleted documents. The indexer never
+ *   changes a published snapshot; it publishes a new one instead, so any
+ *   number of searches can use a snapshot without locking.
+ */
+public class IndexSnapshot implements Index {
+
+    /** Incremented every time a new snapshot is published. */
+    final long generation;
+
+    /** The index loaded before indexing started, or null. */
+    final Index base;
+
+    /** Frozen segments, in increasing docID order. */
+    final List<HashedIndex> segments;
+
+    /** Documents that have been deleted or replaced. */
+    final Set<Integer> deletedDocs;
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Creates a snapshot that only contains the given index. */
+    public IndexSnapshot( Index base ) {
+        this( 0, base, Collections.<HashedIndex>emptyList(), Collections.<Integer>emptySet() );
+    }
+
+    private IndexSnapshot( long generation, Index base, List<HashedIndex> segments, Set<Integer> deletedDocs ) {
+        this.generation = generation;
+        this.base = base;
+        this.segments = segments;
+        this.deletedDocs = deletedDocs;
+    }
+
+
+    /**
+     *  Returns a new snapshot with the segments replaced and some more
+     *  deleted documents.
+     */
+    IndexSnapshot withSegments( List<HashedIndex> newSegments, Set<Integer> deleted ) {
+        Set<Integer> newDeleted = deletedDocs;
+        if ( !deleted.isEmpty() ) {
+            newDeleted = new HashSet<Integer>( deletedDocs );
+            newDeleted.addAll( deleted );
+            newDeleted = Collections.unmodifiableSet( newDeleted );
+        }
+        return new IndexSnapshot( generation + 1, base, Collections.unmodifiableList( newSegments ), newDeleted );
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Returns the postings for a specific term in this snapshot, or null
+     *  if the term is not in it. The lists of the base index and the
+     *  segments are concatenated; deleted documents are left out.
+     */
+    public PostingsList getPostings( String token ) {
+        PostingsList only = null;
+        ArrayList<PostingsList> lists = null;
+        if ( base != null ) {
+            only = base.getPostings( token );
+        }
+        for ( HashedIndex segment : segments ) {
+            PostingsList list = segment.getPostings( token );
+            if ( list == null ) {
+                continue;
+            }
+            if ( only == null && lists == null ) {
+                only = list;
+            } else {
+                if ( lists == null ) {
+                    lists = new ArrayList<PostingsList>();
+                    lists.add( only );
+                }
+                lists.add( list );
+            }
+        }
+        if ( lists == null ) {
+            if ( only == null || deletedDocs.isEmpty() ) {
+                return only;
+            }
+            lists = new ArrayList<PostingsList>();
+            lists.add( only );
+        }
+        PostingsList result = PostingsList.concat( lists, deletedDocs );
+        return result.size() > 0 ? result : null;
+    }
+
+
+    /**
+     *  Returns the terms starting with the prefix, as listed by the base
+     *  index. Segments can't list their terms by prefix, so null is
+     *  returned if there are any (or no base).
+     */
+    public List<String> termsWithPrefix( String prefix ) {
+        if ( base == null || !segments.isEmpty() ) {
+            return null;
+        }
+        return base.termsWithPrefix( prefix );
+    }
+
+
+    /** Snapshots are read-only; the indexer writes to its own segment. */
+    public void insert( String token, int docID, int offset ) {
+        throw new UnsupportedOperationException( "Index snapshots are read-only" );
+    }
+
+
+    /** Nothing to clean up. */
+    public void cleanup() {
+    }
+}
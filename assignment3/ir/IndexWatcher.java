@@ -0,0 +1,156 @@
+package ir;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+
+/**
+ *   Watches the indexed directories and feeds created, modified and
+ *   deleted files to the indexer while the engine is running.
+ *
+ *   Events are collected into a batch until no new event has arrived
+ *   for DEBOUNCE_MS milliseconds (or the batch is older than MAX_DELAY_MS),
+ *   so that an editor saving a file several times only causes one update.
+ */
+public class IndexWatcher implements Runnable {
+
+    /** A batch is applied when no event has arrived for this long. */
+    static final long DEBOUNCE_MS = 500;
+
+    /** A batch is never held back longer than this. */
+    static final long MAX_DELAY_MS = 5000;
+
+    /** The indexer that applies the changes. */
+    Indexer indexer;
+
+    /** The watch service for all directories. */
+    WatchService watcher;
+
+    /** Mapping from watch keys to the directories they belong to. */
+    HashMap<WatchKey,Path> keys = new HashMap<WatchKey,Path>();
+
+    /** The changed files of the current batch, in the order they changed. */
+    LinkedHashSet<Path> pending = new LinkedHashSet<Path>();
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Constructor. Registers all the given directories and their
+     *  subdirectories with the watch service.
+     */
+    public IndexWatcher( Indexer indexer, List<String> dirNames ) throws IOException {
+        this.indexer = indexer;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        for ( String dirName : dirNames ) {
+            registerAll( Paths.get( dirName ), false );
+        }
+    }
+
+
+    /**
+     *  Registers the directory and all its subdirectories. If
+     *  <code>addFiles</code> is true, the files found are added to the
+     *  current batch (needed for directories created after startup,
+     *  whose files may have been written before we started watching).
+     */
+    private void registerAll( Path dir, boolean addFiles ) throws IOException {
+        File[] files = dir.toFile().listFiles();
+        keys.put( dir.register( watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE ), dir );
+        if ( files == null ) {
+            return;
+        }
+        for ( File f : files ) {
+            if ( f.isDirectory() ) {
+                registerAll( dir.resolve( f.getName() ), addFiles );
+            } else if ( addFiles ) {
+                pending.add( dir.resolve( f.getName() ));
+            }
+        }
+    }
+
+
+    /**
+     *  Waits for file system events and applies them in batches.
+     */
+    public void run() {
+        long batchStart = 0;
+        while ( true ) {
+            WatchKey key;
+            try {
+                if ( pending.isEmpty() ) {
+                    key = watcher.take();
+                    batchStart = System.currentTimeMillis();
+                } else {
+                    long wait = Math.min( DEBOUNCE_MS, batchStart + MAX_DELAY_MS - System.currentTimeMillis() );
+                    key = wait > 0 ? watcher.poll( wait, TimeUnit.MILLISECONDS ) : null;
+                }
+            } catch ( InterruptedException e ) {
+                return;
+            } catch ( ClosedWatchServiceException e ) {
+                return;
+            }
+            if ( key == null ) {
+                applyChanges();
+                continue;
+            }
+            Path dir = keys.get( key );
+            for ( WatchEvent<?> event : key.pollEvents() ) {
+                if ( event.kind() == OVERFLOW ) {
+                    System.err.println( "Warning: file system events were lost in " + dir );
+                    continue;
+                }
+                Path child = dir.resolve( (Path)event.context() );
+                if ( event.kind() == ENTRY_CREATE && Files.isDirectory( child )) {
+                    try {
+                        registerAll( child, true );
+                    } catch ( IOException e ) {
+                        System.err.println( "Warning: could not watch " + child );
+                    }
+                } else {
+                    pending.add( child );
+                }
+            }
+            if ( !key.reset() ) {
+                keys.remove( key );
+            }
+        }
+    }
+
+
+    /**
+     *  Applies the current batch to the index. A modified file is removed
+     *  and indexed again under a new docID. The whole batch becomes
+     *  visible to searches at once, when the indexer is flushed.
+     */
+    void applyChanges() {
+        long startTime = System.currentTimeMillis();
+        int added = 0, removed = 0;
+        for ( Path p : pending ) {
+            File f = p.toFile();
+            if ( indexer.removeFile( f.getPath() ) >= 0 ) {
+                removed++;
+            }
+            if ( f.isFile() && f.canRead() && indexer.indexFile( f ) >= 0 ) {
+                added++;
+            }
+        }
+        pending.clear();
+        indexer.flush();
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.err.println( String.format( "Index updated: %d added, %d removed in %.3f seconds", added, removed, elapsedTime/1000.0 ));
+    }
+
+
+    /**
+     *  Stops watching.
+     */
+    public void close() throws IOException {
+        watcher.close();
+    }
+}
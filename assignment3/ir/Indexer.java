@@ -9,7 +9,7 @@ package ir;
 
 import java.io.*;
 import java.util.*;
-import java.nio.charset.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
@@ -29,15 +29,79 @@ public class Indexer {
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
     String patterns_file;
 
+    /** 
+     *  Lock serializing the writers (the initial indexing run and the
+     *  directory watcher). Searches never take it.
+     */
+    Object indexLock;
+
+    /** The snapshots read by the searchers; a new one is published on every flush. */
+    AtomicReference<IndexSnapshot> snapshot;
+
+    /** The segment currently being written. It is not visible to searches. */
+    HashedIndex segment;
+
+    /** Number of documents in the current segment. */
+    int segmentDocs = 0;
+
+    /** The compiled patterns, shared by all tokenizers. */
+    TokenizerConfig tokenizerConfig;
+
+    /** One tokenizer per thread, reused for every document. */
+    ThreadLocal<Tokenizer> tokenizers = ThreadLocal.withInitial( () -> new Tokenizer( null, true, false, true, tokenizerConfig ));
+
+    /** 
+     *  The terms seen so far. Tokens are looked up here straight from the
+     *  tokenizer's buffer, so a String is only created for new terms.
+     *  The dictionary is the one of the k-gram index (if any), and is
+     *  shared by the segments and the forward index.
+     */
+    TermDictionary terms;
+
+    /** The term vectors of the documents, or null if they are not kept. */
+    ForwardIndex forwardIndex;
+
+    /** Documents deleted since the last flush. */
+    HashSet<Integer> deletedDocs = new HashSet<Integer>();
+
+    /** The current segment is published after this many documents. */
+    static final int SEGMENT_DOCS = 1000;
+
+    /** 
+     *  When the newest this many segments are of the same size tier, they
+     *  are merged into one segment of the next tier. Tier t holds segments
+     *  of SEGMENT_DOCS * MERGE_FACTOR^t documents or more, so a document
+     *  is rewritten once per tier, and there are at most MERGE_FACTOR-1
+     *  segments per tier.
+     */
+    static final int MERGE_FACTOR = 4;
+
 
     /* ----------------------------------------------- */
 
 
     /** Constructor */
     public Indexer( Index index, KGramIndex kgIndex, String patterns_file ) {
+        this( index, kgIndex, patterns_file, new Object(), new AtomicReference<IndexSnapshot>( new IndexSnapshot( null )));
+    }
+
+
+    /** 
+     *  Constructor. Published snapshots are stored in <code>snapshot</code>,
+     *  whose initial value is the index loaded from disk (if any).
+     */
+    public Indexer( Index index, KGramIndex kgIndex, String patterns_file, Object indexLock, AtomicReference<IndexSnapshot> snapshot ) {
         this.index = index;
         this.kgIndex = kgIndex;
         this.patterns_file = patterns_file;
+        this.tokenizerConfig = TokenizerConfig.forFile( patterns_file );
+        this.indexLock = indexLock;
+        this.snapshot = snapshot;
+        this.terms = kgIndex != null ? kgIndex.terms : new TermDictionary();
+        this.segment = new HashedIndex( terms );
+        for ( int docID : index.docNames.keySet() ) {
+            lastDocID = Math.max( lastDocID, docID + 1 );
+        }
     }
 
 
@@ -48,6 +112,16 @@ public class Indexer {
 
 
 
+    /**
+     *  Returns this thread's tokenizer, set up to read from <code>reader</code>.
+     */
+    public Tokenizer tokenizer( Reader reader ) {
+        Tokenizer tok = tokenizers.get();
+        tok.reset( reader );
+        return tok;
+    }
+
+
     /**
      *  Tokenizes and indexes the file @code{f}. If <code>f</code> is a directory,
      *  all its files and subdirectories are recursively processed.
@@ -65,40 +139,168 @@ public class Indexer {
                         }
                     }
                 } else {
-                    // First register the document and get a docID
-                    int docID = generateDocID();
-                    if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
-                    try {
-                        Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-                        Tokenizer tok = new Tokenizer( reader, true, false, true, patterns_file );
-                        int offset = 0;
-                        while ( tok.hasMoreTokens() ) {
-                            String token = tok.nextToken();
-                            insertIntoIndex( docID, token, offset++ );
-                        }
-                        index.docNames.put( docID, f.getPath() );
-                        index.docLengths.put( docID, offset );
-                        index.docIDs.put( f.getPath(), docID );
-                        reader.close();
-                    } catch ( IOException e ) {
-                        System.err.println( "Warning: IOException during indexing." );
-                    }
+                    indexFile( f );
+                }
+            }
+        }
+    }
+
+
+    /**
+     *  Tokenizes the file <code>f</code> and adds it to the index as a new
+     *  document. The file is read without holding the index lock; the lock
+     *  is only taken while the tokens are inserted.
+     *
+     *  @return the docID of the new document, or -1 if the file could not be read.
+     */
+    public int indexFile( File f ) {
+        int[] tokens = new int[256];
+        int numberOfTokens = 0;
+        try {
+            Reader reader = new Utf8MappedReader( f );
+            Tokenizer tok = tokenizer( reader );
+            while ( tok.hasMoreTokens() && tok.nextTokenRange() ) {
+                if ( numberOfTokens == tokens.length ) {
+                    tokens = Arrays.copyOf( tokens, 2*numberOfTokens );
+                }
+                tokens[numberOfTokens++] = terms.lookupOrAdd( tok.getBuffer(), tok.tokenStart(), tok.tokenLength() );
+            }
+            reader.close();
+        } catch ( IOException e ) {
+            System.err.println( "Warning: IOException during indexing." );
+            return -1;
+        }
+        synchronized ( indexLock ) {
+            // First register the document and get a docID
+            int docID = generateDocID();
+            if ( docID%1000 == 0 ) System.err.println( "Indexed " + docID + " files" );
+            for ( int offset=0; offset<numberOfTokens; offset++ ) {
+                insertIntoIndex( docID, tokens[offset], offset );
+            }
+            if ( forwardIndex != null ) {
+                forwardIndex.add( docID, tokens, numberOfTokens );
+            }
+            index.docNames.put( docID, f.getPath() );
+            index.docLengths.put( docID, numberOfTokens );
+            index.docIDs.put( f.getPath(), docID );
+            if ( ++segmentDocs >= SEGMENT_DOCS ) {
+                flush();
+            }
+            return docID;
+        }
+    }
+
+
+    /**
+     *  Removes the document with the given path from the search results.
+     *  Its postings stay in the index until the segments are merged, but
+     *  the docID is marked as deleted in the next published snapshot.
+     *
+     *  @return the docID of the removed document, or -1 if it was not indexed.
+     */
+    public int removeFile( String path ) {
+        synchronized ( indexLock ) {
+            Integer docID = index.docIDs.remove( path );
+            if ( docID == null ) {
+                return -1;
+            }
+            deletedDocs.add( docID );
+            return docID;
+        }
+    }
+
+
+    /**
+     *  Publishes the current segment and the pending deletions as a new
+     *  snapshot, and starts a new segment. Searches started after this
+     *  see all documents indexed so far.
+     */
+    public void flush() {
+        synchronized ( indexLock ) {
+            if ( segmentDocs == 0 && deletedDocs.isEmpty() ) {
+                return;
+            }
+            IndexSnapshot current = snapshot.get();
+            HashedIndex published = segmentDocs > 0 ? segment : null;
+            ArrayList<HashedIndex> segments = new ArrayList<HashedIndex>( current.segments );
+            if ( published != null ) {
+                published.numberOfDocs = segmentDocs;
+                segments.add( published );
+                // Merging also drops the postings of deleted documents
+                HashSet<Integer> deleted = new HashSet<Integer>( current.deletedDocs );
+                deleted.addAll( deletedDocs );
+                mergeSegments( segments, deleted );
+            }
+            snapshot.set( current.withSegments( segments, deletedDocs ));
+            // The k-gram index is updated after publishing, so a wildcard
+            // never expands to a term that is not searchable yet.
+            if ( published != null && kgIndex != null ) {
+                kgIndex.insert( published.termIDs() );
+            }
+            segment = new HashedIndex( terms );
+            segmentDocs = 0;
+            deletedDocs = new HashSet<Integer>();
+        }
+    }
+
+
+    /**
+     *  Merges the newest MERGE_FACTOR segments, as long as they are all of
+     *  the same tier. Only neighbouring segments are merged, so the
+     *  segments stay in increasing docID order.
+     */
+    static void mergeSegments( ArrayList<HashedIndex> segments, Set<Integer> deleted ) {
+        while ( segments.size() >= MERGE_FACTOR ) {
+            int first = segments.size() - MERGE_FACTOR;
+            int tier = tier( segments.get( first ));
+            for ( int i=first+1; i<segments.size(); i++ ) {
+                if ( tier( segments.get( i )) != tier ) {
+                    return;
                 }
             }
+            List<HashedIndex> newest = segments.subList( first, segments.size() );
+            HashedIndex merged = HashedIndex.merge( newest, deleted );
+            for ( HashedIndex s : newest ) {
+                merged.numberOfDocs += s.numberOfDocs;
+            }
+            newest.clear();
+            segments.add( merged );
         }
     }
 
 
+    /** The size tier of a segment. */
+    static int tier( HashedIndex segment ) {
+        int tier = 0;
+        for ( long size = (long)SEGMENT_DOCS * MERGE_FACTOR; segment.numberOfDocs >= size; size *= MERGE_FACTOR ) {
+            tier++;
+        }
+        return tier;
+    }
+
+
     /* ----------------------------------------------- */
 
 
     /**
-     *  Indexes one token.
+     *  Indexes one token. A HashedIndex lives entirely in the segments;
+     *  other indexes get every token as well, so that cleanup() can write
+     *  them to disk.
      */
     public void insertIntoIndex( int docID, String token, int offset ) {
-        index.insert( token, docID, offset );
-        if (kgIndex != null)
-            kgIndex.insert(token);
+        segment.insert( token, docID, offset );
+        if ( !(index instanceof HashedIndex) )
+            index.insert( token, docID, offset );
+    }
+
+
+    /**
+     *  Indexes one token, given by its termID in <code>terms</code>.
+     */
+    public void insertIntoIndex( int docID, int termID, int offset ) {
+        segment.insert( termID, docID, offset );
+        if ( !(index instanceof HashedIndex) )
+            index.insert( terms.term( termID ), docID, offset );
     }
 }
 
@@ -9,39 +9,48 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.nio.charset.StandardCharsets;
 
 
+/**
+ *   The k-gram index is written by the indexer while searches read it.
+ *   The postings lists are never changed once published: an insert
+ *   builds new lists for the k-grams it touches and then replaces the
+ *   old ones (copy-on-write). Readers take no lock and get the published
+ *   list itself. Inserts synchronize on the index, and a batch of terms
+ *   copies every touched list only once.
+ *
+ *   Terms are identified by the termIDs of a TermDictionary, which may
+ *   be shared with the inverted index.
+ */
 public class KGramIndex {
 
-    /** Mapping from term ids to actual term strings */
-    HashMap<Integer,String> id2term = new HashMap<Integer,String>();
-
-    /** Mapping from term strings to term ids */
-    HashMap<String,Integer> term2id = new HashMap<String,Integer>();
+    /** Mapping between terms and term ids */
+    final TermDictionary terms;
 
-    /** Index from k-grams to list of term ids that contain the k-gram */
-    HashMap<String,List<KGramPostingsEntry>> index = new HashMap<String,List<KGramPostingsEntry>>();
+    /** The term ids whose k-grams have been inserted (replaced, not changed, by inserts) */
+    volatile BitSet inserted = new BitSet();
 
-    /** The ID of the last processed term */
-    int lastTermID = -1;
+    /** Index from k-grams to unmodifiable lists of term ids that contain the k-gram, sorted by term id */
+    ConcurrentHashMap<String,List<KGramPostingsEntry>> index = new ConcurrentHashMap<String,List<KGramPostingsEntry>>();
 
     /** Number of symbols to form a K-gram */
     int K = 3;
 
     public KGramIndex(int k) {
+        this(k, new TermDictionary());
+    }
+
+    public KGramIndex(int k, TermDictionary terms) {
         K = k;
+        this.terms = terms;
         if (k <= 0) {
             System.err.println("The K-gram index can't be constructed for a negative K value");
             System.exit(1);
         }
     }
 
-    /** Generate the ID for an unknown term */
-    private int generateTermID() {
-        return ++lastTermID;
-    }
-
     public int getK() {
         return K;
     }
@@ -70,59 +79,76 @@ public class KGramIndex {
 
     /** Inserts all k-grams from a token into the index. */
     public void insert( String token ) {
-        if (term2id.get(token) != null) return;
-        //Generate id and add to id maps
-        int id = generateTermID();
-        id2term.put(id, token);
-        term2id.put(token, id);
-        //Insert starting and ending characters
-        token = new StringBuilder().append("^").append(token).append("$").toString();
-        // token = "^" + token + "$";
-        //Generate k-grams and insert into index
-        for (int i = 0; i < token.length(); i++) {
-            StringBuilder gram = new StringBuilder();
-            for (int j = i; j < token.length(); j++) {
-                gram.append(token.charAt(j));
-                if (gram.length() >= K) break;       
-            }
-            if (gram.length() < K) break;
-            
-            String gramStr = gram.toString();
-            if (index.containsKey(gramStr)) {
-                List<KGramPostingsEntry> terms = index.get(gramStr);
-                if (!listContainsID(terms, id)) {
-                    terms.add(new KGramPostingsEntry(id));
-                    index.remove(gramStr);
-                    index.put(gramStr, terms);
-                }
-            } else {
-                List<KGramPostingsEntry> terms = new ArrayList<KGramPostingsEntry>();
-                terms.add(new KGramPostingsEntry(id));
-                index.put(gramStr, terms);
+        insert(terms.lookupOrAdd(token));
+    }
+
+    /** Inserts all k-grams from the term with the given id into the index. */
+    public void insert( int id ) {
+        if (inserted.get(id)) return;
+        insert(new int[] { id });
+    }
+
+    /** Inserts all k-grams from the terms with the given ids into the index. */
+    public synchronized void insert( int[] ids ) {
+        BitSet newInserted = (BitSet)inserted.clone();
+        HashMap<String,ArrayList<Integer>> added = new HashMap<String,ArrayList<Integer>>();
+        for (int id : ids) {
+            if (newInserted.get(id)) continue;
+            newInserted.set(id);
+            String token = terms.term(id);
+            //Insert starting and ending characters
+            token = new StringBuilder().append("^").append(token).append("$").toString();
+            //Generate k-grams and collect the new ids of each
+            for (int i = 0; i + K <= token.length(); i++) {
+                added.computeIfAbsent(token.substring(i, i + K), g -> new ArrayList<Integer>()).add(id);
             }
         }
+        for (Map.Entry<String,ArrayList<Integer>> e : added.entrySet()) {
+            index.put(e.getKey(), merge(index.get(e.getKey()), e.getValue()));
+        }
+        // Published last, so a term is only found once its k-grams are
+        inserted = newInserted;
     }
 
-    private boolean listContainsID(List<KGramPostingsEntry> terms, int id) {
-        for (int i = 0; i < terms.size(); i++) {
-            if (terms.get(i).tokenID == id) return true;
+    /**
+     *  Returns a new unmodifiable list with the ids merged into the
+     *  sorted postings (which may be null), without duplicates.
+     */
+    private static List<KGramPostingsEntry> merge(List<KGramPostingsEntry> postings, ArrayList<Integer> ids) {
+        Collections.sort(ids);
+        int n = postings == null ? 0 : postings.size();
+        ArrayList<KGramPostingsEntry> merged = new ArrayList<KGramPostingsEntry>(n + ids.size());
+        int pos = 0;
+        for (int id : ids) {
+            while (pos < n && postings.get(pos).tokenID < id) {
+                merged.add(postings.get(pos++));
+            }
+            boolean seen = (pos < n && postings.get(pos).tokenID == id)
+                || (!merged.isEmpty() && merged.get(merged.size() - 1).tokenID == id);
+            if (!seen) {
+                merged.add(new KGramPostingsEntry(id));
+            }
+        }
+        while (pos < n) {
+            merged.add(postings.get(pos++));
         }
-        return false;
+        return Collections.unmodifiableList(merged);
     }
 
-    /** Get postings for the given k-gram */
+    /** Get postings for the given k-gram (an unmodifiable list, which inserts do not change) */
     public List<KGramPostingsEntry> getPostings(String kgram) {
         return index.get(kgram);
     }
 
-    /** Get id of a term */
+    /** Get id of a term, or null if the term is not in the k-gram index */
     public Integer getIDByTerm(String term) {
-        return term2id.get(term);
+        int id = terms.lookup(term);
+        return id >= 0 && inserted.get(id) ? id : null;
     }
 
     /** Get a term by the given id */
     public String getTermByID(Integer id) {
-        return id2term.get(id);
+        return terms.term(id);
     }
 
     public void printSearch(String query) {
@@ -194,9 +220,11 @@ public class KGramIndex {
         Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
         Tokenizer tok = new Tokenizer( reader, true, false, true, args.get("patterns_file") );
         while ( tok.hasMoreTokens() ) {
-            String token = tok.nextToken();
-            kgIndex.insert(token);
+            kgIndex.terms.lookupOrAdd(tok.nextToken());
         }
+        int[] ids = new int[kgIndex.terms.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = i;
+        kgIndex.insert(ids);
 
         String[] kgrams = args.get("kgram").split(" ");
         List<KGramPostingsEntry> postings = null;
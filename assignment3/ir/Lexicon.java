@@ -0,0 +1,303 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *   A sorted lexicon on disk, mapping terms to long values.
+ *
+ *   The terms are sorted by their UTF-8 bytes and stored in blocks of
+ *   BLOCK_SIZE terms. The first term of a block is stored in full; the
+ *   others are front-coded, i.e. stored as the number of bytes they share
+ *   with the previous term followed by the remaining bytes. Lengths and
+ *   values are variable-length integers (7 bits per byte, high bit set on
+ *   all but the last byte).
+ *
+ *   The file is memory-mapped. The offsets of the blocks (the sparse
+ *   block index) are stored after the blocks and used in place, so
+ *   opening a lexicon reads nothing but the trailer. A lookup
+ *   binary-searches the first terms of the blocks and then decodes at
+ *   most one block; the terms with a given prefix are found the same way
+ *   and enumerated in order.
+ */
+public class Lexicon {
+
+    /** Number of terms in a block. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** Identifies a lexicon file. */
+    static final int MAGIC = 0x4c455831;
+
+    /** The trailer: magic, number of terms, number of blocks, offset of the block index. */
+    static final int TRAILER_SIZE = 16;
+
+    /** The mapped file, or null if the lexicon is empty. */
+    ByteBuffer buf;
+
+    /** Number of terms. */
+    int numberOfTerms = 0;
+
+    /** Number of blocks. */
+    int numberOfBlocks = 0;
+
+    /** Offset of the block index in the file. */
+    int blockIndex = 0;
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Creates an empty lexicon. */
+    public Lexicon() {
+    }
+
+
+    /**
+     *  Opens the lexicon stored in the file. If the file does not exist,
+     *  the lexicon is empty.
+     */
+    public static Lexicon open( File file ) throws IOException {
+        Lexicon lexicon = new Lexicon();
+        if ( !file.exists() ) {
+            return lexicon;
+        }
+        try ( FileChannel channel = new RandomAccessFile( file, "r" ).getChannel() ) {
+            long size = channel.size();
+            if ( size < TRAILER_SIZE ) {
+                throw new IOException( "Lexicon file " + file + " is truncated" );
+            }
+            ByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            int trailer = (int)size - TRAILER_SIZE;
+            if ( buf.getInt( trailer ) != MAGIC ) {
+                throw new IOException( file + " is not a lexicon file" );
+            }
+            lexicon.buf = buf;
+            lexicon.numberOfTerms = buf.getInt( trailer + 4 );
+            lexicon.numberOfBlocks = buf.getInt( trailer + 8 );
+            lexicon.blockIndex = buf.getInt( trailer + 12 );
+        }
+        return lexicon;
+    }
+
+
+    /** Number of terms in the lexicon. */
+    public int size() {
+        return numberOfTerms;
+    }
+
+
+    /**
+     *  Returns the value of the term, or -1 if the term is not in the
+     *  lexicon.
+     */
+    public long lookup( String term ) {
+        byte[] key = term.getBytes( StandardCharsets.UTF_8 );
+        int block = findBlock( key );
+        if ( block < 0 ) {
+            return -1;
+        }
+        Cursor c = new Cursor( block );
+        int end = Math.min( numberOfTerms, (block+1) * BLOCK_SIZE );
+        while ( c.index < end ) {
+            c.next();
+            int cmp = Arrays.compareUnsigned( c.term, 0, c.length, key, 0, key.length );
+            if ( cmp == 0 ) {
+                return c.value;
+            }
+            if ( cmp > 0 ) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     *  Returns the terms starting with <code>prefix</code>, in sorted order.
+     */
+    public List<String> termsWithPrefix( String prefix ) {
+        ArrayList<String> result = new ArrayList<String>();
+        if ( numberOfTerms == 0 ) {
+            return result;
+        }
+        byte[] key = prefix.getBytes( StandardCharsets.UTF_8 );
+        int block = Math.max( 0, findBlock( key ));
+        Cursor c = new Cursor( block );
+        while ( c.index < numberOfTerms ) {
+            c.next();
+            if ( c.length >= key.length && Arrays.equals( c.term, 0, key.length, key, 0, key.length )) {
+                result.add( new String( c.term, 0, c.length, StandardCharsets.UTF_8 ));
+            } else if ( Arrays.compareUnsigned( c.term, 0, c.length, key, 0, key.length ) > 0 ) {
+                break;
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     *  Writes a lexicon with the given terms and values
+     *  (<code>values[i]</code> is the value of <code>terms.get(i)</code>)
+     *  to the file. The terms must be distinct, but need not be sorted.
+     *  An existing file is removed first, so that a lexicon which has
+     *  it mapped can still be used.
+     */
+    public static void write( File file, List<String> terms, long[] values ) throws IOException {
+        file.delete();
+        int n = terms.size();
+        byte[][] keys = new byte[n][];
+        Integer[] order = new Integer[n];
+        for ( int i=0; i<n; i++ ) {
+            keys[i] = terms.get( i ).getBytes( StandardCharsets.UTF_8 );
+            order[i] = i;
+        }
+        Arrays.sort( order, ( a, b ) -> Arrays.compareUnsigned( keys[a], keys[b] ));
+
+        int numberOfBlocks = ( n + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+        int[] blockOffsets = new int[numberOfBlocks];
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ));
+        try {
+            byte[] prev = null;
+            for ( int i=0; i<n; i++ ) {
+                byte[] key = keys[order[i]];
+                if ( i % BLOCK_SIZE == 0 ) {
+                    blockOffsets[i / BLOCK_SIZE] = out.size();
+                    writeVLong( out, key.length );
+                    out.write( key );
+                } else {
+                    int shared = Arrays.mismatch( prev, key );
+                    writeVLong( out, shared );
+                    writeVLong( out, key.length - shared );
+                    out.write( key, shared, key.length - shared );
+                }
+                writeVLong( out, values[order[i]] );
+                prev = key;
+            }
+            int blockIndex = out.size();
+            for ( int offset : blockOffsets ) {
+                out.writeInt( offset );
+            }
+            out.writeInt( MAGIC );
+            out.writeInt( n );
+            out.writeInt( numberOfBlocks );
+            out.writeInt( blockIndex );
+        } finally {
+            out.close();
+        }
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Decodes the terms one after the other, starting at the first term
+     *  of a block.
+     */
+    private class Cursor {
+
+        /** Position in the file. */
+        int pos;
+
+        /** Index of the next term. */
+        int index;
+
+        /** The UTF-8 bytes of the current term are <code>term[0..length)</code>. */
+        byte[] term = new byte[64];
+        int length = 0;
+
+        /** The value of the current term. */
+        long value;
+
+        Cursor( int block ) {
+            pos = buf.getInt( blockIndex + 4*block );
+            index = block * BLOCK_SIZE;
+        }
+
+        void next() {
+            int shared = 0;
+            if ( index % BLOCK_SIZE != 0 ) {
+                shared = (int)readVLong();
+            }
+            int suffix = (int)readVLong();
+            length = shared + suffix;
+            if ( length > term.length ) {
+                term = Arrays.copyOf( term, Math.max( 2*term.length, length ));
+            }
+            buf.get( pos, term, shared, suffix );
+            pos += suffix;
+            value = readVLong();
+            index++;
+        }
+
+        long readVLong() {
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get( pos++ );
+                v |= (long)( b & 0x7f ) << shift;
+                shift += 7;
+            } while ( b < 0 );
+            return v;
+        }
+    }
+
+
+    /**
+     *  Returns the last block whose first term is not greater than the
+     *  key, or -1 if the key comes before all terms.
+     */
+    private int findBlock( byte[] key ) {
+        int lo = 0;
+        int hi = numberOfBlocks - 1;
+        int found = -1;
+        while ( lo <= hi ) {
+            int mid = ( lo + hi ) >>> 1;
+            if ( compareFirstTerm( mid, key ) <= 0 ) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+
+    /** Compares the first term of the block with the key, byte by byte. */
+    private int compareFirstTerm( int block, byte[] key ) {
+        int pos = buf.getInt( blockIndex + 4*block );
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get( pos++ );
+            length |= ( b & 0x7f ) << shift;
+            shift += 7;
+        } while ( b < 0 );
+        int n = Math.min( length, key.length );
+        for ( int i=0; i<n; i++ ) {
+            int cmp = Byte.compareUnsigned( buf.get( pos+i ), key[i] );
+            if ( cmp != 0 ) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+
+    private static void writeVLong( DataOutputStream out, long value ) throws IOException {
+        while (( value & ~0x7fL ) != 0 ) {
+            out.writeByte( (int)(( value & 0x7f ) | 0x80 ));
+            value >>>= 7;
+        }
+        out.writeByte( (int)value );
+    }
+}
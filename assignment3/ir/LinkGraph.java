@@ -0,0 +1,206 @@
+package ir;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+/**
+ *   A link graph in compressed sparse row (CSR) form.
+ *
+ *   The nodes are numbered 0, 1, 2, ... in the order in which they first
+ *   appear in the links file. The links from node i go to the nodes
+ *   <code>colIdx[rowPtr[i]..rowPtr[i+1])</code>, sorted and without
+ *   duplicates, so the whole graph takes two int arrays.
+ *
+ *   Each line in a links file has the format
+ *   <code>nodeID;outNodeID1,outNodeID2,...,outNodeIDK</code>
+ */
+public class LinkGraph {
+
+    /** Number of nodes. */
+    public final int numberOfNodes;
+
+    /** The links from node i start at <code>colIdx[rowPtr[i]]</code>; the array has numberOfNodes+1 elements. */
+    public final int[] rowPtr;
+
+    /** The targets of the links. */
+    public final int[] colIdx;
+
+    /** Mapping from node numbers to the names used in the links file. */
+    public final String[] nodeName;
+
+    /** Mapping from the names used in the links file to node numbers. */
+    public final HashMap<String,Integer> nodeNumber;
+
+
+    /* --------------------------------------------- */
+
+
+    LinkGraph( int numberOfNodes, int[] rowPtr, int[] colIdx, String[] nodeName, HashMap<String,Integer> nodeNumber ) {
+        this.numberOfNodes = numberOfNodes;
+        this.rowPtr = rowPtr;
+        this.colIdx = colIdx;
+        this.nodeName = nodeName;
+        this.nodeNumber = nodeNumber;
+    }
+
+
+    /** Number of links. */
+    public int numberOfEdges() {
+        return rowPtr[numberOfNodes];
+    }
+
+
+    /** Number of links from node i. */
+    public int outDegree( int i ) {
+        return rowPtr[i+1] - rowPtr[i];
+    }
+
+
+    /**
+     *   Reads a links file. Reading stops when <code>maxNodes</code>
+     *   nodes have been seen.
+     */
+    public static LinkGraph read( String filename, int maxNodes ) throws IOException {
+        HashMap<String,Integer> nodeNumber = new HashMap<String,Integer>();
+        String[] nodeName = new String[1024];
+        int numberOfNodes = 0;
+        int[] from = new int[1024];
+        int[] to = new int[1024];
+        int numberOfEdges = 0;
+        try ( BufferedReader in = new BufferedReader( new FileReader( filename ))) {
+            String line;
+            while (( line = in.readLine()) != null && numberOfNodes < maxNodes ) {
+                int index = line.indexOf( ';' );
+                if ( index < 0 ) {
+                    continue;
+                }
+                String title = line.substring( 0, index );
+                Integer fromdoc = nodeNumber.get( title );
+                if ( fromdoc == null ) {
+                    fromdoc = numberOfNodes++;
+                    nodeNumber.put( title, fromdoc );
+                    nodeName = grow( nodeName, fromdoc );
+                    nodeName[fromdoc] = title;
+                }
+                // Check all outlinks.
+                int start = index + 1;
+                while ( start < line.length() && numberOfNodes < maxNodes ) {
+                    int end = line.indexOf( ',', start );
+                    if ( end < 0 ) {
+                        end = line.length();
+                    }
+                    if ( end > start ) {
+                        String otherTitle = line.substring( start, end );
+                        Integer otherDoc = nodeNumber.get( otherTitle );
+                        if ( otherDoc == null ) {
+                            otherDoc = numberOfNodes++;
+                            nodeNumber.put( otherTitle, otherDoc );
+                            nodeName = grow( nodeName, otherDoc );
+                            nodeName[otherDoc] = otherTitle;
+                        }
+                        if ( numberOfEdges == from.length ) {
+                            from = Arrays.copyOf( from, 2*numberOfEdges );
+                            to = Arrays.copyOf( to, 2*numberOfEdges );
+                        }
+                        from[numberOfEdges] = fromdoc;
+                        to[numberOfEdges] = otherDoc;
+                        numberOfEdges++;
+                    }
+                    start = end + 1;
+                }
+            }
+        }
+        return fromEdges( numberOfNodes, from, to, numberOfEdges, Arrays.copyOf( nodeName, numberOfNodes ), nodeNumber );
+    }
+
+
+    /**
+     *   Writes the graph as a links file, one line per node (also for
+     *   nodes without links). read() reads back the same graph, although
+     *   the nodes may get other numbers.
+     */
+    public void write( String filename ) throws IOException {
+        try ( PrintWriter out = new PrintWriter( new BufferedWriter( new FileWriter( filename )))) {
+            StringBuilder line = new StringBuilder();
+            for ( int i=0; i<numberOfNodes; i++ ) {
+                line.setLength( 0 );
+                line.append( nodeName[i] ).append( ';' );
+                for ( int k=rowPtr[i]; k<rowPtr[i+1]; k++ ) {
+                    line.append( nodeName[colIdx[k]] ).append( ',' );
+                }
+                out.println( line );
+            }
+        }
+    }
+
+
+    /**
+     *   Builds the CSR form of the edges <code>from[k] -> to[k]</code>,
+     *   k < numberOfEdges, dropping duplicate edges.
+     */
+    static LinkGraph fromEdges( int numberOfNodes, int[] from, int[] to, int numberOfEdges, String[] nodeName, HashMap<String,Integer> nodeNumber ) {
+        // Counting sort of the edges by source
+        int[] rowPtr = new int[numberOfNodes+1];
+        for ( int k=0; k<numberOfEdges; k++ ) {
+            rowPtr[from[k]+1]++;
+        }
+        for ( int i=0; i<numberOfNodes; i++ ) {
+            rowPtr[i+1] += rowPtr[i];
+        }
+        int[] colIdx = new int[numberOfEdges];
+        int[] next = Arrays.copyOf( rowPtr, numberOfNodes );
+        for ( int k=0; k<numberOfEdges; k++ ) {
+            colIdx[next[from[k]]++] = to[k];
+        }
+        // Sort every row and remove duplicates, compacting the rows
+        int write = 0;
+        int rowStart = 0;
+        for ( int i=0; i<numberOfNodes; i++ ) {
+            int rowEnd = rowPtr[i+1];
+            Arrays.sort( colIdx, rowStart, rowEnd );
+            rowPtr[i] = write;
+            for ( int k=rowStart; k<rowEnd; k++ ) {
+                if ( k == rowStart || colIdx[k] != colIdx[k-1] ) {
+                    colIdx[write++] = colIdx[k];
+                }
+            }
+            rowStart = rowEnd;
+        }
+        rowPtr[numberOfNodes] = write;
+        if ( write < colIdx.length ) {
+            colIdx = Arrays.copyOf( colIdx, write );
+        }
+        return new LinkGraph( numberOfNodes, rowPtr, colIdx, nodeName, nodeNumber );
+    }
+
+
+    /**
+     *   Returns the transposed graph, in which the links of node j are
+     *   the links to j in this graph (sorted by source).
+     */
+    public LinkGraph transpose() {
+        int[] inPtr = new int[numberOfNodes+1];
+        int numberOfEdges = numberOfEdges();
+        for ( int k=0; k<numberOfEdges; k++ ) {
+            inPtr[colIdx[k]+1]++;
+        }
+        for ( int j=0; j<numberOfNodes; j++ ) {
+            inPtr[j+1] += inPtr[j];
+        }
+        int[] inIdx = new int[numberOfEdges];
+        int[] next = Arrays.copyOf( inPtr, numberOfNodes );
+        for ( int i=0; i<numberOfNodes; i++ ) {
+            for ( int k=rowPtr[i]; k<rowPtr[i+1]; k++ ) {
+                inIdx[next[colIdx[k]]++] = i;
+            }
+        }
+        return new LinkGraph( numberOfNodes, inPtr, inIdx, nodeName, nodeNumber );
+    }
+
+
+    private static String[] grow( String[] a, int index ) {
+        return index < a.length ? a : Arrays.copyOf( a, 2*a.length );
+    }
+}
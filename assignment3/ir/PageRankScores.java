@@ -0,0 +1,99 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ *   PageRank scores of the documents, computed offline and stored in a
+ *   file as one float per document, indexed by the engine's docID.
+ *
+ *   The file starts with a header (magic, number of documents) followed
+ *   by the scores, and is memory-mapped, so opening it reads nothing and
+ *   a score is a single read from the mapped file. Documents outside the
+ *   file, or not in the link graph, have score 0.
+ *
+ *   The file is written by <code>PageRankSparse -scores</code>, which
+ *   maps the nodes of the link graph to docIDs through the docInfo file
+ *   of the persistent index, so the scores are only valid for that index.
+ */
+public class PageRankScores {
+
+    /** Identifies a scores file. */
+    static final int MAGIC = 0x50524b31;
+
+    /** The header: magic, number of documents. */
+    static final int HEADER_SIZE = 8;
+
+    /** The mapped file, or null if there are no scores. */
+    ByteBuffer buf;
+
+    /** Number of documents in the file. */
+    int numberOfDocs = 0;
+
+
+    /* ----------------------------------------------- */
+
+
+    /** Creates an empty set of scores. */
+    public PageRankScores() {
+    }
+
+
+    /**
+     *  Opens the scores stored in the file.
+     */
+    public static PageRankScores open( File file ) throws IOException {
+        PageRankScores scores = new PageRankScores();
+        try ( FileChannel channel = new RandomAccessFile( file, "r" ).getChannel() ) {
+            long size = channel.size();
+            if ( size < HEADER_SIZE ) {
+                throw new IOException( "Scores file " + file + " is truncated" );
+            }
+            ByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            if ( buf.getInt( 0 ) != MAGIC ) {
+                throw new IOException( file + " is not a PageRank scores file" );
+            }
+            int n = buf.getInt( 4 );
+            if ( HEADER_SIZE + 4L*n > size ) {
+                throw new IOException( "Scores file " + file + " is truncated" );
+            }
+            scores.buf = buf;
+            scores.numberOfDocs = n;
+        }
+        return scores;
+    }
+
+
+    /** Number of documents in the file. */
+    public int size() {
+        return numberOfDocs;
+    }
+
+
+    /** The score of the document, or 0 if it has none. */
+    public float get( int docID ) {
+        if ( docID < 0 || docID >= numberOfDocs ) {
+            return 0;
+        }
+        return buf.getFloat( HEADER_SIZE + 4*docID );
+    }
+
+
+    /**
+     *  Writes the scores (<code>scores[docID]</code> is the score of
+     *  docID) to the file. An existing file is removed first, so that
+     *  an instance which has it mapped can still be used.
+     */
+    public static void write( File file, float[] scores ) throws IOException {
+        file.delete();
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ))) {
+            out.writeInt( MAGIC );
+            out.writeInt( scores.length );
+            for ( float s : scores ) {
+                out.writeFloat( s );
+            }
+        }
+    }
+}
@@ -5,43 +5,40 @@ import java.io.*;
 
 public class PageRankSparse {
 
+    /**
+     *   The ways of solving for the PageRank vector.
+     *
+     *   JACOBI is the plain power iteration. GAUSS_SEIDEL updates the
+     *   vector in place, so every node already uses the new ranks of the
+     *   nodes before it. EXTRAPOLATION is the power iteration, with an
+     *   Aitken extrapolation from the last three iterates every
+     *   EXTRAPOLATION_PERIOD iterations.
+     */
+    public enum Solver { JACOBI, GAUSS_SEIDEL, EXTRAPOLATION };
+
     /**  
      *   Maximal number of documents. We're assuming here that we
      *   don't have more docs than we can keep in main memory.
      */
     final static int MAX_NUMBER_OF_DOCS = 2000000;
 
-    /**
-     *   Mapping from document names to document numbers.
+    /**  
+     *   A memory-efficient representation of the transition matrix:
+     *   the links in compressed sparse row form. The number of outlinks
+     *   from i is <code>graph.outDegree(i)</code>; if there are none,
+     *   i is a dangling node.
      */
-    HashMap<String,Integer> docNumber = new HashMap<String,Integer>();
+    LinkGraph graph;
 
     /**
      *   Mapping from document numbers to document names
      */
-    String[] docName = new String[MAX_NUMBER_OF_DOCS];
-
-    /**  
-     *   A memory-efficient representation of the transition matrix.
-     *   The outlinks are represented as a HashMap, whose keys are 
-     *   the numbers of the documents linked from.<p>
-     *
-     *   The value corresponding to key i is a HashMap whose keys are 
-     *   all the numbers of documents j that i links to.<p>
-     *
-     *   If there are no outlinks from i, then the value corresponding 
-     *   key i is null.
-     */
-    HashMap<Integer,HashMap<Integer,Boolean>> link = new HashMap<Integer,HashMap<Integer,Boolean>>();
-
-    private HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
-
-    private HashMap<String, Integer> titles = new HashMap<String, Integer>();
+    String[] docName = new String[0];
 
     /**
-     *   The number of outlinks from each node.
+     *   The ranks computed by iterate(), by document number.
      */
-    int[] out = new int[MAX_NUMBER_OF_DOCS];
+    double[] ranks;
 
     /**
      *   The probability that the surfer will be bored, stop
@@ -50,11 +47,49 @@ public class PageRankSparse {
     final static double BORED = 0.15;
 
     /**
-     *   Convergence criterion: Transition probabilities do not 
-     *   change more that EPSILON from one iteration to another.
+     *   Convergence criterion: the rank vector changes less than
+     *   EPSILON (in L1 norm) from one iteration to another.
      */
     final static double EPSILON = 0.0001;
 
+    /**
+     *   Number of threads for the power iteration. With more than one,
+     *   the iteration is done by ParallelPageRank.
+     */
+    int threads = 1;
+
+    /**
+     *   The solver used by powerIterate().
+     */
+    Solver solver = Solver.JACOBI;
+
+    /**
+     *   The vector the iteration starts from, or null to start from the
+     *   uniform vector.
+     */
+    double[] start;
+
+    /**
+     *   Number of iterations done by the last powerIterate().
+     */
+    int iterations;
+
+    /**
+     *   Aitken extrapolation is applied every this many iterations.
+     */
+    final static int EXTRAPOLATION_PERIOD = 10;
+
+    /**
+     *   Aitken extrapolation is only applied if the cosine of the angle
+     *   between the last two changes is at least this.
+     */
+    final static double MIN_ALIGNMENT = 0.99;
+
+    /**
+     *   The links to every node, for GAUSS_SEIDEL (made when needed).
+     */
+    LinkGraph inGraph;
+
        
     /* --------------------------------------------- */
 
@@ -65,6 +100,14 @@ public class PageRankSparse {
     }
 
 
+    /**
+     *   Creates an empty instance; the caller reads the link file
+     *   and iterates itself (used by the benchmarks).
+     */
+    PageRankSparse() {
+    }
+
+
     /* --------------------------------------------- */
 
 
@@ -75,43 +118,11 @@ public class PageRankSparse {
      */
     int readDocs( String filename ) {
 	int fileIndex = 0;
+	System.err.print( "Reading file... " );
 	try {
-	    System.err.print( "Reading file... " );
-	    BufferedReader in = new BufferedReader( new FileReader( filename ));
-	    String line;
-	    while ((line = in.readLine()) != null && fileIndex<MAX_NUMBER_OF_DOCS ) {
-		int index = line.indexOf( ";" );
-		String title = line.substring( 0, index );
-		Integer fromdoc = docNumber.get( title );
-		//  Have we seen this document before?
-		if ( fromdoc == null ) {	
-		    // This is a previously unseen doc, so add it to the table.
-		    fromdoc = fileIndex++;
-		    docNumber.put( title, fromdoc );
-		    docName[fromdoc] = title;
-		}
-		// Check all outlinks.
-		StringTokenizer tok = new StringTokenizer( line.substring(index+1), "," );
-		while ( tok.hasMoreTokens() && fileIndex<MAX_NUMBER_OF_DOCS ) {
-		    String otherTitle = tok.nextToken();
-		    Integer otherDoc = docNumber.get( otherTitle );
-		    if ( otherDoc == null ) {
-			// This is a previousy unseen doc, so add it to the table.
-			otherDoc = fileIndex++;
-			docNumber.put( otherTitle, otherDoc );
-			docName[otherDoc] = otherTitle;
-		    }
-		    // Set the probability to 0 for now, to indicate that there is
-		    // a link from fromdoc to otherDoc.
-		    if ( link.get(fromdoc) == null ) {
-			link.put(fromdoc, new HashMap<Integer,Boolean>());
-		    }
-		    if ( link.get(fromdoc).get(otherDoc) == null ) {
-			link.get(fromdoc).put( otherDoc, true );
-			out[fromdoc]++;
-		    }
-		}
-	    }
+	    graph = LinkGraph.read( filename, MAX_NUMBER_OF_DOCS );
+	    docName = graph.nodeName;
+	    fileIndex = graph.numberOfNodes;
 	    if ( fileIndex >= MAX_NUMBER_OF_DOCS ) {
 		System.err.print( "stopped reading since documents table is full. " );
 	    }
@@ -138,50 +149,175 @@ public class PageRankSparse {
      *   aP, aP^2, aP^3... until aP^i = aP^(i+1).
      */
     void iterate( int numberOfDocs, int maxIterations ) {
-        double[] x = new double[numberOfDocs];
-        double[] xPrime = new double[numberOfDocs]; xPrime[0] = 1;
-        int numIteration = 0;
-        while (!diffLessThanEpsilon(x, xPrime) && numIteration < maxIterations) {
-            numIteration++;
-			x = xPrime;
-            xPrime = multiplyWithTransition(x);
-        }
-        storeScores(xPrime);
+        ranks = powerIterate(numberOfDocs, maxIterations);
     }
-    
-    double getScore( String title ) {
-        return scores.get(titles.get(title));
+
+    /*
+     *   The power iteration of iterate(), without storing the ranks.
+     */
+    double[] powerIterate( int numberOfDocs, int maxIterations ) {
+        double[] x = new double[numberOfDocs];
+        double[] xPrime = startVector(numberOfDocs);
+        iterations = 0;
+        if (numberOfDocs == 0) return xPrime;
+        if (solver == Solver.GAUSS_SEIDEL) {
+            return gaussSeidel(xPrime, maxIterations);
+        }
+        if (threads > 1 && solver == Solver.JACOBI) {
+            ParallelPageRank parallel = new ParallelPageRank(graph, threads);
+            try {
+                double[] result = parallel.iterate(xPrime, maxIterations, EPSILON);
+                iterations = parallel.iterations;
+                return result;
+            } finally {
+                parallel.shutdown();
+            }
+        }
+        double[] xOld = solver == Solver.EXTRAPOLATION ? new double[numberOfDocs] : null;
+        while (l1Distance(x, xPrime) >= EPSILON && iterations < maxIterations) {
+            iterations++;
+            double[] tmp = xOld != null ? xOld : x;
+            if (xOld != null) xOld = x;
+            x = xPrime;
+            xPrime = tmp;
+            multiplyWithTransition(x, xPrime);
+            if (xOld != null && iterations % EXTRAPOLATION_PERIOD == 0) {
+                aitken(xOld, x, xPrime);
+            }
+        }
+        return xPrime;
     }
-	
-	private boolean diffLessThanEpsilon( double[] x, double[] xPrime ) {
-        for (int i = 0; i < x.length; i++) {
-            if (Math.abs(x[i] - xPrime[i]) > EPSILON) return false;
+
+    /*
+     *   The start vector: a copy of <code>start</code>, normalized to
+     *   sum 1, or the uniform vector.
+     */
+    double[] startVector( int numberOfDocs ) {
+        double[] x = new double[numberOfDocs];
+        double sum = 0;
+        if (start != null) {
+            for (int i = 0; i < numberOfDocs && i < start.length; i++) {
+                x[i] = start[i];
+                sum += x[i];
+            }
         }
-        return true;
-	}
-	
-	private double[] multiplyWithTransition( double[] xPrime ) {
-		double[] result = new double[xPrime.length];
-		double p1 = 1 / (double)xPrime.length;
-		double p2 = BORED * p1;
+        if (sum <= 0) {
+            Arrays.fill(x, 1.0 / numberOfDocs);
+        } else {
+            for (int i = 0; i < numberOfDocs; i++) x[i] /= sum;
+        }
+        return x;
+    }
 
-        for (int i = 0; i < xPrime.length; i++) {
-            double indexValue = 0;
-            for (int j = 0; j < xPrime.length; j++) {
-                indexValue += calcTransitionVal(j, i, xPrime.length, p1, p2) * xPrime[j];
+    /*
+     *   Gauss-Seidel iteration: the ranks are pulled over the links to
+     *   every node, in place. The mass of the random jumps and dangling
+     *   nodes is taken from the vector at the start of each sweep, and
+     *   the vector is normalized after the sweep.
+     */
+    private double[] gaussSeidel( double[] x, int maxIterations ) {
+        if (inGraph == null) inGraph = graph.transpose();
+        int n = x.length;
+        int[] inPtr = inGraph.rowPtr;
+        int[] inIdx = inGraph.colIdx;
+        double[] weight = new double[n];
+        for (int i = 0; i < n; i++) {
+            int out = graph.outDegree(i);
+            weight[i] = out == 0 ? 0 : (1 - BORED) / out;
+        }
+        double diff = Double.MAX_VALUE;
+        while (diff >= EPSILON && iterations < maxIterations) {
+            iterations++;
+            double total = 0;
+            double dangling = 0;
+            for (int i = 0; i < n; i++) {
+                total += x[i];
+                if (weight[i] == 0) dangling += x[i];
+            }
+            double jump = (dangling + BORED * (total - dangling)) / n;
+            diff = 0;
+            double sum = 0;
+            for (int j = 0; j < n; j++) {
+                double v = jump;
+                for (int k = inPtr[j]; k < inPtr[j + 1]; k++) {
+                    int i = inIdx[k];
+                    v += x[i] * weight[i];
+                }
+                diff += Math.abs(v - x[j]);
+                x[j] = v;
+                sum += v;
             }
-            result[i] = indexValue;
+            for (int j = 0; j < n; j++) x[j] /= sum;
         }
+        return x;
+    }
 
-        return result;
+    /*
+     *   Aitken extrapolation from the iterates x0, x1 and x2 (the latest),
+     *   which is replaced by the result. If the last two changes point in
+     *   the same direction, one mode of the error dominates, and it
+     *   shrinks by a ratio r per iteration which is estimated from their
+     *   lengths. The remaining changes (a geometric series) are then
+     *   added at once: x2 + r/(1-r) (x2 - x1). Otherwise (and if the
+     *   change isn't shrinking) nothing is done. Negative ranks are
+     *   clipped.
+     */
+    private void aitken( double[] x0, double[] x1, double[] x2 ) {
+        double dot = 0, n1 = 0, n2 = 0;
+        for (int i = 0; i < x2.length; i++) {
+            double d1 = x1[i] - x0[i];
+            double d2 = x2[i] - x1[i];
+            dot += d1 * d2;
+            n1 += d1 * d1;
+            n2 += d2 * d2;
+        }
+        if (n2 >= n1 || dot < MIN_ALIGNMENT * Math.sqrt(n1 * n2)) return;
+        double r = Math.sqrt(n2 / n1);
+        double f = r / (1 - r);
+        double sum = 0;
+        for (int i = 0; i < x2.length; i++) {
+            double v = x2[i] + f * (x2[i] - x1[i]);
+            x2[i] = v > 0 ? v : 0;
+            sum += x2[i];
+        }
+        for (int i = 0; i < x2.length; i++) x2[i] /= sum;
+    }
+
+	
+	private double l1Distance( double[] x, double[] xPrime ) {
+        double sum = 0;
+        for (int i = 0; i < x.length; i++) {
+            sum += Math.abs(x[i] - xPrime[i]);
+        }
+        return sum;
 	}
 	
-	private double calcTransitionVal( int i, int j, int numberOfDocs, 
-									  double p1, double p2 ) {		
-		if (out[i] == 0) return p1;
-		Boolean val = link.get(i).get(j);
-		if (val == null) return p2;
-		else 			 return ((1 - BORED) * (1 / (double)out[i])) + p2;
+	/*
+	 *   Computes result = xP in O(number of links). Every node pushes
+	 *   (1-BORED) of its rank along its links. The rest of the rank, and
+	 *   all the rank of dangling nodes, is spread evenly over all nodes,
+	 *   so it is added to every node as one scalar.
+	 */
+	private void multiplyWithTransition( double[] x, double[] result ) {
+		int[] rowPtr = graph.rowPtr;
+		int[] colIdx = graph.colIdx;
+		double total = 0;
+		double dangling = 0;
+		for (int i = 0; i < x.length; i++) {
+			total += x[i];
+			if (rowPtr[i] == rowPtr[i + 1]) dangling += x[i];
+		}
+		Arrays.fill(result, (dangling + BORED * (total - dangling)) / x.length);
+
+		for (int i = 0; i < x.length; i++) {
+			int start = rowPtr[i];
+			int end = rowPtr[i + 1];
+			if (start == end) continue;
+			double share = (1 - BORED) * x[i] / (end - start);
+			for (int k = start; k < end; k++) {
+				result[colIdx[k]] += share;
+			}
+		}
 	}
 
     private void printPageRanks( double[] xPrime ) {
@@ -206,24 +342,159 @@ public class PageRankSparse {
         }
     }
 
-    private void storeScores( double[] xPrime ) {
-        for (int i = 0; i < xPrime.length; i++) {
-            scores.put(Integer.parseInt(docName[i]), xPrime[i]);
+    /**
+     *   Writes the ranks to a file, one <code>name;rank</code> line per
+     *   node.
+     */
+    void saveRanks( double[] x, String filename ) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(filename)))) {
+            for (int i = 0; i < x.length; i++) {
+                out.println(docName[i] + ";" + x[i]);
+            }
         }
-        readTitles();
     }
 
-    private void readTitles() {
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( "davisTitles.txt" ) );
+    /**
+     *   Reads ranks written by saveRanks() into a vector for the nodes of
+     *   the current graph. Nodes which are not in the file get rank 1/N
+     *   (a new node starts from the uniform rank), and the vector is
+     *   normalized to sum 1.
+     */
+    double[] loadRanks( String filename ) throws IOException {
+        int n = graph.numberOfNodes;
+        double[] x = new double[n];
+        Arrays.fill(x, -1);
+        try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int index = line.lastIndexOf(';');
+                if (index < 0) continue;
+                Integer i = graph.nodeNumber.get(line.substring(0, index));
+                if (i != null) {
+                    x[i] = Double.parseDouble(line.substring(index + 1));
+                }
+            }
+        }
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            if (x[i] < 0) x[i] = 1.0 / n;
+            sum += x[i];
+        }
+        for (int i = 0; i < n; i++) x[i] /= sum;
+        return x;
+    }
+
+    /**
+     *   Writes the ranks as a PageRankScores file, indexed by the docIDs
+     *   of the search engine. The nodes of the link graph are numbers
+     *   which the titles file (lines <code>id;title</code>) maps to file
+     *   names, and the document names the engine writes after indexing
+     *   (Engine.DOCNAMES_FILE, lines <code>docID;path</code>) map the file
+     *   names to docIDs. The docInfo file of a persistent index (lines
+     *   <code>docID;path;length</code>) can be given instead.
+     *   Documents which are not in the link graph get score 0.
+     */
+    void saveScores( double[] x, String titlesFile, String docInfoFile, String scoresFile ) throws IOException {
+        HashMap<String, Integer> docID = new HashMap<String, Integer>();
+        int numberOfDocs = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(docInfoFile))) {
             String line;
-            while ((line = in.readLine()) != null ) {
+            while ((line = in.readLine()) != null) {
+                String[] data = line.split(";");
+                if (data.length < 2) continue;
+                int id = Integer.parseInt(data[0]);
+                docID.put(new File(data[1]).getName(), id);
+                numberOfDocs = Math.max(numberOfDocs, id + 1);
+            }
+        }
+        float[] scores = new float[numberOfDocs];
+        int found = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(titlesFile))) {
+            String line;
+            while ((line = in.readLine()) != null) {
                 int splitIndex = line.indexOf(";");
-                int id = Integer.parseInt(line.substring(0, splitIndex));
-                String title = line.substring(splitIndex + 1);
-                titles.put("./davisWiki/" + title, id);
+                if (splitIndex < 0) continue;
+                Integer node = graph.nodeNumber.get(line.substring(0, splitIndex));
+                Integer id = docID.get(line.substring(splitIndex + 1));
+                if (node != null && id != null) {
+                    scores[id] = (float) x[node];
+                    found++;
+                }
+            }
+        }
+        PageRankScores.write(new File(scoresFile), scores);
+        System.err.println("Wrote the scores of " + found + " of " + numberOfDocs + " documents to " + scoresFile);
+    }
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *   Computes the PageRank of a links file and prints the number of
+     *   iterations, the time and the top 30 documents. With -scores, the
+     *   ranks are also written as a PageRankScores file for the engine
+     *   (see saveScores()).
+     *
+     *   Usage: PageRankSparse [-s jacobi|gauss_seidel|extrapolation]
+     *          [-start uniform|ranks_file] [-save ranks_file] [-t threads]
+     *          [-scores scores_file [-titles titles_file] [-docinfo docInfo_file]] links_file
+     */
+    public static void main( String[] args ) {
+        String linksFile = null;
+        String startFile = null;
+        String saveFile = null;
+        String scoresFile = null;
+        String titlesFile = "davisTitles.txt";
+        String docInfoFile = Engine.DOCNAMES_FILE;
+        PageRankSparse pr = new PageRankSparse();
+        int i = 0;
+        while (i < args.length) {
+            if (args[i].equals("-s") && i + 1 < args.length) {
+                pr.solver = Solver.valueOf(args[i + 1].toUpperCase());
+                i += 2;
+            } else if (args[i].equals("-start") && i + 1 < args.length) {
+                startFile = args[i + 1].equals("uniform") ? null : args[i + 1];
+                i += 2;
+            } else if (args[i].equals("-save") && i + 1 < args.length) {
+                saveFile = args[i + 1];
+                i += 2;
+            } else if (args[i].equals("-t") && i + 1 < args.length) {
+                pr.threads = Integer.parseInt(args[i + 1]);
+                i += 2;
+            } else if (args[i].equals("-scores") && i + 1 < args.length) {
+                scoresFile = args[i + 1];
+                i += 2;
+            } else if (args[i].equals("-titles") && i + 1 < args.length) {
+                titlesFile = args[i + 1];
+                i += 2;
+            } else if (args[i].equals("-docinfo") && i + 1 < args.length) {
+                docInfoFile = args[i + 1];
+                i += 2;
+            } else {
+                linksFile = args[i++];
+            }
+        }
+        if (linksFile == null) {
+            System.err.println("Usage: PageRankSparse [-s jacobi|gauss_seidel|extrapolation] [-start uniform|ranks_file] [-save ranks_file] [-t threads] [-scores scores_file [-titles titles_file] [-docinfo docInfo_file]] links_file");
+            return;
+        }
+        int n = pr.readDocs(linksFile);
+        try {
+            if (startFile != null) {
+                pr.start = pr.loadRanks(startFile);
+            }
+            long t0 = System.nanoTime();
+            double[] x = pr.powerIterate(n, 1000);
+            long ms = (System.nanoTime() - t0) / 1000000;
+            System.err.println(pr.solver + ": " + pr.iterations + " iterations, " + ms + " ms");
+            pr.printPageRanks(x);
+            if (saveFile != null) {
+                pr.saveRanks(x, saveFile);
+            }
+            if (scoresFile != null) {
+                pr.saveScores(x, titlesFile, docInfoFile, scoresFile);
             }
-        } catch(IOException e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
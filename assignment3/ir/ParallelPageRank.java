@@ -0,0 +1,290 @@
+package ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+/**
+ *   PageRank power iteration on several threads.
+ *
+ *   Each iteration pulls the rank into every node over the transposed
+ *   link graph (the links to the node), so every node's new rank is
+ *   written by exactly one thread and no locking is needed. The nodes
+ *   are split into ranges with about the same number of links (plus
+ *   nodes), a few ranges per thread, which are run on a ForkJoinPool.
+ *   The rank vector is double-buffered: one iteration reads one array
+ *   and writes the other.
+ *
+ *   The result is the same as that of PageRankSparse.powerIterate, up
+ *   to rounding.
+ */
+public class ParallelPageRank {
+
+    /** Number of node ranges per thread, so that a slow range doesn't hold up the others. */
+    static final int RANGES_PER_THREAD = 4;
+
+    /** The links to every node. */
+    final LinkGraph in;
+
+    /** (1-BORED)/out-degree of every node, or 0 for dangling nodes. */
+    final double[] weight;
+
+    /** Node ranges: range r is <code>bounds[r]..bounds[r+1]</code>. */
+    final int[] bounds;
+
+    /** The pool running the ranges. */
+    final ForkJoinPool pool;
+
+    /** Number of threads. */
+    final int threads;
+
+    /** Print the change of the rank vector after every iteration. */
+    boolean log = false;
+
+    /** Number of iterations done by the last call of iterate(). */
+    int iterations;
+
+
+    /* --------------------------------------------- */
+
+
+    public ParallelPageRank( LinkGraph graph, int threads ) {
+        this.threads = threads;
+        in = graph.transpose();
+        int n = graph.numberOfNodes;
+        weight = new double[n];
+        for ( int i=0; i<n; i++ ) {
+            int out = graph.outDegree( i );
+            weight[i] = out == 0 ? 0 : ( 1 - PageRankSparse.BORED ) / out;
+        }
+        bounds = partition( in, threads * RANGES_PER_THREAD );
+        pool = new ForkJoinPool( threads );
+    }
+
+
+    /**
+     *   Splits the nodes into (at most) <code>parts</code> consecutive
+     *   ranges, each with about the same number of links to its nodes
+     *   plus nodes.
+     */
+    static int[] partition( LinkGraph in, int parts ) {
+        int n = in.numberOfNodes;
+        long work = (long)in.numberOfEdges() + n;
+        int[] bounds = new int[parts+1];
+        int r = 1;
+        for ( int j=0; j<n && r<parts; j++ ) {
+            // Work done for nodes 0..j
+            long done = (long)in.rowPtr[j+1] + j + 1;
+            if ( done * parts >= work * r ) {
+                bounds[r++] = j + 1;
+            }
+        }
+        while ( r <= parts ) {
+            bounds[r++] = n;
+        }
+        return bounds;
+    }
+
+
+    /**
+     *   Iterates from the start vector until the rank vector changes less
+     *   than <code>epsilon</code> (in L1 norm), or for at most
+     *   <code>maxIterations</code> iterations.
+     */
+    public double[] iterate( double[] start, int maxIterations, double epsilon ) {
+        int n = in.numberOfNodes;
+        double[] x = start.clone();
+        double[] xNext = new double[n];
+        double[] share = new double[n];
+        iterations = 0;
+        for ( int iteration=1; iteration<=maxIterations; iteration++ ) {
+            iterations = iteration;
+            long startTime = System.nanoTime();
+            // Every node's share of its rank per link, and the mass to spread evenly
+            final double[] cur = x;
+            double[] sums = sum( run( r -> () -> {
+                double total = 0;
+                double dangling = 0;
+                for ( int i=bounds[r]; i<bounds[r+1]; i++ ) {
+                    total += cur[i];
+                    share[i] = cur[i] * weight[i];
+                    if ( weight[i] == 0 ) dangling += cur[i];
+                }
+                return new double[] { total, dangling };
+            }));
+            final double jump = ( sums[1] + PageRankSparse.BORED * ( sums[0] - sums[1] )) / n;
+            // Pull the shares over the links to every node
+            final double[] next = xNext;
+            double diff = sum( run( r -> () -> {
+                int[] inPtr = in.rowPtr;
+                int[] inIdx = in.colIdx;
+                double d = 0;
+                for ( int j=bounds[r]; j<bounds[r+1]; j++ ) {
+                    double v = jump;
+                    for ( int k=inPtr[j]; k<inPtr[j+1]; k++ ) {
+                        v += share[inIdx[k]];
+                    }
+                    next[j] = v;
+                    d += Math.abs( v - cur[j] );
+                }
+                return new double[] { d };
+            }))[0];
+            xNext = x;
+            x = next;
+            if ( log ) {
+                System.err.println( String.format( "Iteration %d: change %.3e (%.1f ms)", iteration, diff, (System.nanoTime() - startTime) / 1e6 ));
+            }
+            if ( diff < epsilon ) {
+                break;
+            }
+        }
+        return x;
+    }
+
+
+    /** Stops the threads. */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /** The task of one node range. */
+    interface RangeTask {
+        Callable<double[]> forRange( int r );
+    }
+
+
+    /** Runs the task on all ranges and returns their results. */
+    private List<double[]> run( RangeTask task ) {
+        ArrayList<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+        for ( int r=0; r+1<bounds.length; r++ ) {
+            if ( bounds[r] < bounds[r+1] ) {
+                tasks.add( task.forRange( r ));
+            }
+        }
+        ArrayList<double[]> results = new ArrayList<double[]>();
+        try {
+            for ( Future<double[]> f : pool.invokeAll( tasks )) {
+                results.add( f.get() );
+            }
+        } catch ( Exception e ) {
+            throw new RuntimeException( e );
+        }
+        return results;
+    }
+
+
+    /** Sums the results of the ranges, element by element. */
+    private static double[] sum( List<double[]> results ) {
+        double[] s = new double[results.isEmpty() ? 2 : results.get( 0 ).length];
+        for ( double[] a : results ) {
+            for ( int i=0; i<a.length; i++ ) {
+                s[i] += a[i];
+            }
+        }
+        return s;
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *   Creates a random graph with links to nodes chosen with a skewed
+     *   (power-law like) distribution.
+     */
+    static LinkGraph randomGraph( int numberOfNodes, int numberOfEdges, long seed ) {
+        Random random = new Random( seed );
+        int[] from = new int[numberOfEdges];
+        int[] to = new int[numberOfEdges];
+        for ( int k=0; k<numberOfEdges; k++ ) {
+            from[k] = random.nextInt( numberOfNodes );
+            double u = random.nextDouble();
+            to[k] = (int)( numberOfNodes * u * u * u );
+        }
+        String[] names = new String[numberOfNodes];
+        for ( int i=0; i<numberOfNodes; i++ ) {
+            names[i] = Integer.toString( i );
+        }
+        return LinkGraph.fromEdges( numberOfNodes, from, to, numberOfEdges, names, new HashMap<String,Integer>() );
+    }
+
+
+    /**
+     *   Measures the speedup over the sequential iteration.
+     *
+     *   Usage: ParallelPageRank [-t 1,2,4,...] [-v] (links_file | -random nodes links)
+     */
+    public static void main( String[] args ) {
+        String linksFile = null;
+        int randomNodes = 0;
+        int randomEdges = 0;
+        int[] threadCounts = { 1, 2, 4, 8 };
+        boolean verbose = false;
+        int i = 0;
+        while ( i < args.length ) {
+            if ( args[i].equals( "-t" ) && i+1 < args.length ) {
+                String[] t = args[i+1].split( "," );
+                threadCounts = new int[t.length];
+                for ( int k=0; k<t.length; k++ ) {
+                    threadCounts[k] = Integer.parseInt( t[k] );
+                }
+                i += 2;
+            } else if ( args[i].equals( "-random" ) && i+2 < args.length ) {
+                randomNodes = Integer.parseInt( args[i+1] );
+                randomEdges = Integer.parseInt( args[i+2] );
+                i += 3;
+            } else if ( args[i].equals( "-v" )) {
+                verbose = true;
+                i++;
+            } else {
+                linksFile = args[i++];
+            }
+        }
+        PageRankSparse pr = new PageRankSparse();
+        int n;
+        if ( linksFile != null ) {
+            n = pr.readDocs( linksFile );
+        } else if ( randomNodes > 0 ) {
+            pr.graph = randomGraph( randomNodes, randomEdges, 1 );
+            pr.docName = pr.graph.nodeName;
+            n = randomNodes;
+        } else {
+            System.err.println( "Usage: ParallelPageRank [-t 1,2,4,...] [-v] (links_file | -random nodes links)" );
+            return;
+        }
+        System.err.println( n + " nodes, " + pr.graph.numberOfEdges() + " links, " + Runtime.getRuntime().availableProcessors() + " processors" );
+        // The same start vector as powerIterate, so that the runs are comparable
+        double[] start = pr.startVector( n );
+
+        pr.powerIterate( n, 1000 );   // warm-up
+        long t0 = System.nanoTime();
+        double[] expected = pr.powerIterate( n, 1000 );
+        double sequential = ( System.nanoTime() - t0 ) / 1e6;
+        System.err.println( String.format( "sequential push: %.0f ms", sequential ));
+
+        for ( int threads : threadCounts ) {
+            ParallelPageRank ppr = new ParallelPageRank( pr.graph, threads );
+            ppr.log = verbose;
+            ppr.iterate( start, 1000, PageRankSparse.EPSILON );   // warm-up
+            t0 = System.nanoTime();
+            double[] x = ppr.iterate( start, 1000, PageRankSparse.EPSILON );
+            double ms = ( System.nanoTime() - t0 ) / 1e6;
+            ppr.shutdown();
+            double l1 = 0;
+            for ( int j=0; j<n; j++ ) {
+                l1 += Math.abs( x[j] - expected[j] );
+            }
+            System.err.println( String.format( "%d threads: %.0f ms, speedup %.2f, L1 distance to sequential %.1e",
+                                               threads, ms, sequential / ms, l1 ));
+        }
+    }
+}
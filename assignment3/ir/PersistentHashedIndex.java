@@ -9,7 +9,15 @@ package ir;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /*
@@ -19,9 +27,23 @@ import java.nio.charset.*;
  *   stored in RandomAccessFiles that permit fast (almost constant-time)
  *   disk seeks. 
  *
+ *   The dictionary is a hash table with open addressing (linear probing).
+ *   Every entry holds the 64-bit hash of the word, the place and size of
+ *   its record in the data file, and the length of the word. The record
+ *   starts with the word itself, followed by the postings list in binary
+ *   (see PostingsList.encode), so a lookup compares the whole word
+ *   before it accepts an entry. The table size is a power of two chosen
+ *   from the number of words, and the longest probe sequence is stored
+ *   in the header of the file, so lookups never scan further than that.
+ *
  *   When words are read and indexed, they are first put in an ordinary,
  *   main-memory HashMap. When all words are read, the index is committed
- *   to disk.
+ *   to disk: encoder threads turn the postings lists into blocks of
+ *   records, and a single thread appends the blocks to the data file and
+ *   fills in the dictionary, which is written at the end in one go.
+ *
+ *   The words are also kept in a sorted Lexicon (with their entry in the
+ *   dictionary), which lists the words with a given prefix.
  */
 public class PersistentHashedIndex implements Index {
 
@@ -34,17 +56,44 @@ public class PersistentHashedIndex implements Index {
     /** The dictionary file name */
     public static final String DATA_FNAME = "data";
 
-    /** The terms file name */
-    public static final String TERMS_FNAME = "terms";
+    /** The lexicon file name */
+    public static final String LEXICON_FNAME = "lexicon";
 
     /** The doc info file name */
     public static final String DOCINFO_FNAME = "docInfo";
 
-    /** The dictionary hash table on disk can fit this many entries. */
-    public static final long TABLESIZE = 611953L;
+    /** The dictionary hash table is at most this full. */
+    public static final double LOAD_FACTOR = 0.5;
+
+    /** Size of an entry in the dictionary: hash, data pointer, data size, key length. */
+    static final int ENTRY_SIZE = 24;
+
+    /** Size of the dictionary header: magic, table size, longest probe sequence, number of words. */
+    static final int HEADER_SIZE = 16;
+
+    /** Identifies a dictionary file. */
+    static final int DICTIONARY_MAGIC = 0x44494333;
+
+    /** Number of threads encoding postings lists while the index is written. */
+    static final int ENCODER_THREADS = Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 );
+
+    /** An encoder claims this many postings lists at a time. */
+    static final int ENCODE_CHUNK = 256;
 
-    /** The dictionary hash table is stored in this file. */
-    RandomAccessFile dictionaryFile;
+    /** Encoders hand over blocks of at least this many bytes (except the last ones). */
+    static final int BLOCK_BYTES = 1 << 20;
+
+    /** Size of the direct buffer through which the data file is written. */
+    static final int WRITE_BUFFER_BYTES = 8 << 20;
+
+    /** The dictionary hash table, mapped from the dictionary file, or null if there is none. */
+    ByteBuffer dictionary;
+
+    /** Number of entries in the dictionary hash table, a power of two. */
+    int tableSize;
+
+    /** The longest probe sequence in the dictionary; lookups give up after it. */
+    int maxProbe;
 
     /** The data (the PostingsLists) are stored in this file. */
     RandomAccessFile dataFile;
@@ -54,7 +103,9 @@ public class PersistentHashedIndex implements Index {
 
     /** The cache as a main-memory hash map. */
     HashMap<String,PostingsList> index = new HashMap<String,PostingsList>();
-    HashMap<String, Long> terms = new HashMap<String, Long>();
+
+    /** The terms, with their slot in the dictionary. */
+    Lexicon lexicon = new Lexicon();
 
 
     // ===================================================================
@@ -65,12 +116,59 @@ public class PersistentHashedIndex implements Index {
     public class Entry {
         long key;
         int size;
-        int hash;
+        long hash;
+        int keyLength;
 
-        public Entry(long key, int size, int hash) {
+        public Entry(long key, int size, long hash, int keyLength) {
             this.key = key;
             this.size = size;
             this.hash = hash;
+            this.keyLength = keyLength;
+        }
+    }
+
+    /**
+     *   A block of consecutive records for the data file, encoded by one
+     *   of the encoder threads while the index is written.
+     */
+    static class Block extends ByteArrayOutputStream {
+        /** Marks that an encoder thread is done. */
+        static final Block END = new Block( 0 );
+
+        DataOutputStream out = new DataOutputStream( this );
+        ArrayList<String> terms = new ArrayList<String>();
+        long[] hashes = new long[64];
+        int[] starts = new int[64];
+        int[] sizes = new int[64];
+        int[] keyLengths = new int[64];
+        int n = 0;
+
+        Block( int size ) {
+            super( size );
+        }
+
+        /** The bytes of the block, without copying; see size(). */
+        byte[] bytes() {
+            return buf;
+        }
+
+        /** Encodes the record of a term: the word followed by its postings. */
+        void add( String term, PostingsList list ) throws IOException {
+            if ( n == hashes.length ) {
+                hashes = Arrays.copyOf( hashes, 2*n );
+                starts = Arrays.copyOf( starts, 2*n );
+                sizes = Arrays.copyOf( sizes, 2*n );
+                keyLengths = Arrays.copyOf( keyLengths, 2*n );
+            }
+            byte[] key = term.getBytes( StandardCharsets.UTF_8 );
+            starts[n] = count;
+            out.write( key );
+            list.encode( out );
+            terms.add( term );
+            hashes[n] = hash( key );
+            sizes[n] = count - starts[n];
+            keyLengths[n] = key.length;
+            n++;
         }
     }
 
@@ -83,8 +181,6 @@ public class PersistentHashedIndex implements Index {
      */
     public PersistentHashedIndex() {
         try {
-            dictionaryFile = new RandomAccessFile( INDEXDIR + "/" + DICTIONARY_FNAME, "rw" );
-            dictionaryFile.setLength( TABLESIZE * 16 );
             dataFile = new RandomAccessFile( INDEXDIR + "/" + DATA_FNAME, "rw" );
         } catch ( IOException e ) {
             e.printStackTrace();
@@ -96,33 +192,53 @@ public class PersistentHashedIndex implements Index {
         } catch ( IOException e ) {
             e.printStackTrace();
         }
-    }
 
-    /**
-     *  Writes data to the data file at a specified place.
-     *
-     *  @return The number of bytes written.
-     */ 
-    int writeData( BufferedWriter outStream, String dataString, long ptr ) {
         try {
-            outStream.write( dataString, 0, dataString.length() );
-            return dataString.getBytes().length;
+            openDictionary();
+            lexicon = Lexicon.open( new File( INDEXDIR, LEXICON_FNAME ));
         } catch ( IOException e ) {
             e.printStackTrace();
-            return -1;
+        }
+    }
+
+    /**
+     *  Appends data to the data file through the buffer, which is written
+     *  to the file whenever it is full.
+     */ 
+    void writeData( FileChannel channel, ByteBuffer buffer, byte[] data, int length ) throws IOException {
+        int pos = 0;
+        while ( pos < length ) {
+            int n = Math.min( buffer.remaining(), length - pos );
+            buffer.put( data, pos, n );
+            pos += n;
+            if ( !buffer.hasRemaining() ) {
+                flushData( channel, buffer );
+            }
         }
     }
 
 
     /**
-     *  Reads data from the data file
+     *  Writes the contents of the buffer to the data file.
      */ 
-    String readData( long ptr, int size ) {
+    void flushData( FileChannel channel, ByteBuffer buffer ) throws IOException {
+        buffer.flip();
+        while ( buffer.hasRemaining() ) {
+            channel.write( buffer );
+        }
+        buffer.clear();
+    }
+
+
+    /**
+     *  Reads data from the data file. Uses positional reads, so that
+     *  several searches can read from the file at the same time.
+     */ 
+    byte[] readData( long ptr, int size ) {
         try {
-            dataFile.seek( ptr );
             byte[] data = new byte[size];
-            dataFile.readFully( data );
-            return new String(data);
+            readFully( dataFile.getChannel(), ByteBuffer.wrap( data ), ptr );
+            return data;
         } catch ( IOException e ) {
             e.printStackTrace();
             return null;
@@ -130,60 +246,112 @@ public class PersistentHashedIndex implements Index {
     }
 
 
+    /**
+     *  Fills the buffer from the channel, starting at the given position.
+     */
+    static void readFully( FileChannel channel, ByteBuffer buf, long ptr ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            int n = channel.read( buf, ptr + buf.position() );
+            if ( n < 0 ) throw new EOFException();
+        }
+    }
+
+
     // ==================================================================
     //
     //  Reading and writing to the dictionary file.
 
+    /**
+     *  Computes the 64-bit hash of a word (FNV-1a of its UTF-8 bytes,
+     *  with the bits mixed by the MurmurHash3 finalizer). The hash is
+     *  never 0, which marks an empty entry.
+     */
+    static long hash( byte[] key ) {
+        long h = 0xcbf29ce484222325L;
+        for ( byte b : key ) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
     /*
-     *  Writes an entry to the dictionary hash table file. 
+     *  Writes an entry to the in-memory dictionary hash table.
      *
-     *  @param entry The key of this entry is assumed to have a fixed length
-     *  @param ptr   The place in the dictionary file to store the entry
-     *  @return The number of collisions
+     *  @return The slot where the entry was stored (after collisions)
      */
-    int writeEntry( String token, Entry entry, long ptr ) {
-        int collisions = 0;
-        try {
-            //Collision detection
-            dictionaryFile.seek( ptr );
-            int hash = dictionaryFile.readInt();
-            while (hash != 0) {
-                collisions += 1;
-                dictionaryFile.skipBytes(12);
-                if (dictionaryFile.getFilePointer() == TABLESIZE * 16) {
-                    dictionaryFile.seek(0);
-                }
-                hash = dictionaryFile.readInt();
-            }
-            dictionaryFile.seek(dictionaryFile.getFilePointer() - 4);
-            terms.put(token, dictionaryFile.getFilePointer());
-            //Write to dictionary file
-            dictionaryFile.writeInt( entry.hash );
-            dictionaryFile.writeLong( entry.key );
-            dictionaryFile.writeInt( entry.size );
-        } catch ( IOException e ) {
-            e.printStackTrace();
+    int writeEntry( ByteBuffer table, Entry entry ) {
+        int mask = tableSize - 1;
+        int slot = (int)entry.hash & mask;
+        int probe = 0;
+        //Collision detection
+        while (table.getLong( HEADER_SIZE + slot * ENTRY_SIZE ) != 0) {
+            slot = (slot + 1) & mask;
+            probe++;
         }
-        return collisions;
+        maxProbe = Math.max( maxProbe, probe );
+        int ptr = HEADER_SIZE + slot * ENTRY_SIZE;
+        table.putLong( ptr, entry.hash );
+        table.putLong( ptr + 8, entry.key );
+        table.putInt( ptr + 16, entry.size );
+        table.putInt( ptr + 20, entry.keyLength );
+        return slot;
     }
 
     /**
-     *  Reads an entry from the dictionary file.
+     *  Reads an entry from the dictionary.
      *
-     *  @param ptr The place in the dictionary file where to start reading.
+     *  @param slot The place of the entry in the hash table.
+     *  @return The entry, or null if the slot is empty.
      */
-    Entry readEntry( long ptr, String token ) {   
-        try {
-            dictionaryFile.seek(ptr);
-            int hash = dictionaryFile.readInt();
-            if (hash != token.hashCode()) return null;
-            long dataPtr = dictionaryFile.readLong();
-            int size = dictionaryFile.readInt();
-            return new Entry(dataPtr, size, hash);
-        } catch (IOException e) {
-            e.printStackTrace();
+    Entry readEntry( int slot ) {   
+        int ptr = HEADER_SIZE + slot * ENTRY_SIZE;
+        long hash = dictionary.getLong( ptr );
+        if (hash == 0) return null;
+        return new Entry(dictionary.getLong( ptr + 8 ), dictionary.getInt( ptr + 16 ), hash, dictionary.getInt( ptr + 20 ));
+    }
+
+    /**
+     *  Maps the dictionary file, if there is one.
+     */
+    private void openDictionary() throws IOException {
+        File file = new File( INDEXDIR, DICTIONARY_FNAME );
+        if ( !file.exists() ) return;
+        try ( FileChannel channel = new RandomAccessFile( file, "r" ).getChannel() ) {
+            ByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if ( buf.limit() < HEADER_SIZE || buf.getInt( 0 ) != DICTIONARY_MAGIC ) {
+                System.err.println( "Warning: " + file + " is not a dictionary file; the index must be rebuilt" );
+                return;
+            }
+            tableSize = buf.getInt( 4 );
+            maxProbe = buf.getInt( 8 );
+            dictionary = buf;
         }
-        return null;
+    }
+
+    /**
+     *  Writes the in-memory dictionary hash table to the dictionary file
+     *  and maps it. The old file is removed first, since it may be mapped.
+     */
+    private void writeDictionary( ByteBuffer table, int numberOfTerms ) throws IOException {
+        table.putInt( 0, DICTIONARY_MAGIC );
+        table.putInt( 4, tableSize );
+        table.putInt( 8, maxProbe );
+        table.putInt( 12, numberOfTerms );
+        File file = new File( INDEXDIR, DICTIONARY_FNAME );
+        file.delete();
+        try ( FileChannel channel = new RandomAccessFile( file, "rw" ).getChannel() ) {
+            table.clear();
+            while ( table.hasRemaining() ) {
+                channel.write( table );
+            }
+        }
+        openDictionary();
     }
 
 
@@ -204,14 +372,17 @@ public class PersistentHashedIndex implements Index {
         fout.close();
     }
 
-    private void writeTerms() {
+    /**
+     *  Writes the lexicon and opens it.
+     *
+     *  @param terms The terms
+     *  @param slots The slot of each term in the dictionary
+     */
+    private void writeLexicon( List<String> terms, long[] slots ) {
         try {
-            BufferedWriter outstream = new BufferedWriter(new FileWriter( INDEXDIR + "/" + TERMS_FNAME ));
-            for (Map.Entry<String, Long> entry : terms.entrySet()) {
-                outstream.write(entry.getKey() + ";" + entry.getValue() + "\n");
-            }
-            outstream.flush();
-            outstream.close();
+            File file = new File( INDEXDIR, LEXICON_FNAME );
+            Lexicon.write( file, terms, slots );
+            lexicon = Lexicon.open( file );
         } catch(IOException e) {
             e.printStackTrace();
         }
@@ -235,25 +406,13 @@ public class PersistentHashedIndex implements Index {
             }
         }
         freader.close();
-
-        try {
-            BufferedReader instream = new BufferedReader(new FileReader( INDEXDIR + "/" + TERMS_FNAME ));
-            String line = instream.readLine();
-            while (line != null) {
-                String token = line.substring(0, line.indexOf(";"));
-                long ptr = Long.parseLong(line.substring(line.indexOf(";") + 1));
-                terms.put(token, ptr);
-                line = instream.readLine();
-            }
-            instream.close();
-        } catch(IOException e) {
-            e.printStackTrace();
-        }
     }
 
 
     /**
-     *  Write the index to files.
+     *  Write the index to files. If encoding or writing fails, the encoder
+     *  threads are stopped and the data, dictionary and lexicon files are
+     *  removed, so that no partial index is left behind.
      */
     public void writeIndex() {
         int collisions = 0;
@@ -261,30 +420,108 @@ public class PersistentHashedIndex implements Index {
             // Write the 'docNames' and 'docLengths' hash maps to a file
             writeDocInfo();       
 
-            // Write the dictionary and the postings list
-            BufferedWriter dataOutStream = new BufferedWriter(new FileWriter( INDEXDIR + "/" + DATA_FNAME ));
-            dataOutStream.write('0');
-            for (Map.Entry<String, PostingsList> entry : index.entrySet()) {
-                //Construct string for postingslist
-                StringBuilder serialization = new StringBuilder();
-                serialization.append(entry.getKey())
-                             .append(";")
-                             .append(entry.getValue().toStringBuilder());
-                //Write entry to dictionary
-                long ptr = (Math.abs(entry.getKey().hashCode()) % TABLESIZE) * 16;
-                Entry newEntry = new Entry(free, serialization.toString().getBytes().length, entry.getKey().hashCode()); 
-                collisions += writeEntry(entry.getKey(), newEntry, ptr);
-                //Write postings list to data file
-                free += writeData(dataOutStream,  serialization.toString(), free);
+            // The dictionary is built in memory, sized for the number of words
+            tableSize = Integer.highestOneBit(Math.max(16, (int)Math.ceil(index.size() / LOAD_FACTOR)) - 1) << 1;
+            maxProbe = 0;
+            ByteBuffer table = ByteBuffer.allocate(HEADER_SIZE + tableSize * ENTRY_SIZE);
+            ArrayList<String> terms = new ArrayList<String>(index.size());
+            long[] slots = new long[index.size()];
+
+            // The encoders produce blocks of records; this thread appends
+            // them to the data file and enters them in the dictionary
+            List<Map.Entry<String, PostingsList>> lists = new ArrayList<Map.Entry<String, PostingsList>>(index.entrySet());
+            AtomicInteger next = new AtomicInteger();
+            AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            BlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(2 * ENCODER_THREADS);
+            ExecutorService encoders = Executors.newFixedThreadPool(ENCODER_THREADS);
+            for (int i = 0; i < ENCODER_THREADS; i++) {
+                encoders.execute(() -> encodeBlocks(lists, next, queue, failure));
+            }
+            encoders.shutdown();
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+            try (FileChannel data = new FileOutputStream( INDEXDIR + "/" + DATA_FNAME ).getChannel()) {
+                buffer.put((byte)'0');
+                free = 1L;
+                int running = ENCODER_THREADS;
+                while (running > 0) {
+                    Block block = queue.take();
+                    if (failure.get() != null) {
+                        throw new IOException("Encoding the postings failed", failure.get());
+                    }
+                    if (block == Block.END) {
+                        running--;
+                        continue;
+                    }
+                    for (int i = 0; i < block.n; i++) {
+                        long hash = block.hashes[i];
+                        int slot = writeEntry(table, new Entry(free + block.starts[i], block.sizes[i], hash, block.keyLengths[i]));
+                        collisions += (slot - (int)hash) & (tableSize - 1);
+                        slots[terms.size()] = slot;
+                        terms.add(block.terms.get(i));
+                    }
+                    writeData(data, buffer, block.bytes(), block.size());
+                    free += block.size();
+                }
+                flushData(data, buffer);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                removeIndexFiles();
+                return;
+            } finally {
+                // Wakes up encoders blocked on the full queue if the writer stopped early
+                encoders.shutdownNow();
             }
-            dataOutStream.flush();
-            dataOutStream.close();
 
-            writeTerms();
+            writeDictionary(table, terms.size());
+            writeLexicon(terms, slots);
         } catch ( IOException e ) {
             e.printStackTrace();
+            removeIndexFiles();
+            System.err.println( "The index was not written." );
+            return;
+        }
+        System.err.println( collisions + " collisions, longest probe sequence " + maxProbe + "." );
+    }
+
+
+    /** Removes the data, dictionary and lexicon files after a failed write. */
+    private void removeIndexFiles() {
+        for (String name : new String[] { DATA_FNAME, DICTIONARY_FNAME, LEXICON_FNAME }) {
+            new File(INDEXDIR, name).delete();
+        }
+    }
+
+
+    /**
+     *  Run by the encoder threads: encodes the postings lists, claiming
+     *  ENCODE_CHUNK lists at a time, and puts the blocks in the queue,
+     *  followed by Block.END. If encoding fails, the error is stored in
+     *  <code>failure</code> (checked by the writer) before Block.END is sent.
+     */
+    private void encodeBlocks( List<Map.Entry<String, PostingsList>> lists, AtomicInteger next, BlockingQueue<Block> queue, AtomicReference<Throwable> failure ) {
+        try {
+            try {
+                Block block = new Block(BLOCK_BYTES + 4096);
+                int start;
+                while ((start = next.getAndAdd(ENCODE_CHUNK)) < lists.size()) {
+                    int end = Math.min(lists.size(), start + ENCODE_CHUNK);
+                    for (int i = start; i < end; i++) {
+                        block.add(lists.get(i).getKey(), lists.get(i).getValue());
+                        if (block.size() >= BLOCK_BYTES) {
+                            queue.put(block);
+                            block = new Block(BLOCK_BYTES + 4096);
+                        }
+                    }
+                }
+                if (block.n > 0) queue.put(block);
+            } catch (IOException | RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+            }
+            queue.put(Block.END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        System.err.println( collisions + " collisions." );
     }
 
 
@@ -296,23 +533,32 @@ public class PersistentHashedIndex implements Index {
      *  if the term is not in the index.
      */
     public PostingsList getPostings( String token ) {
-        if (!terms.containsKey(token)) return null;
-
-        long dictPtr = terms.get(token);
-        Entry entry = readEntry(dictPtr, token);
-
-        // long dictPtr = (Math.abs(token.hashCode()) % TABLESIZE) * 16;
-        // long startPtr = dictPtr;
-
-        // while (entry == null) {
-        //     dictPtr += 16;
-        //     if (dictPtr == TABLESIZE * 16) dictPtr = 0;
-        //     entry = readEntry(dictPtr, token);
-        //     if (dictPtr == startPtr) return null;
-        // }
-        
-        String data = readData(entry.key, entry.size);
-        return new PostingsList(data);
+        if (dictionary == null) return null;
+
+        byte[] key = token.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key);
+        int mask = tableSize - 1;
+        int slot = (int)hash & mask;
+        for (int probe = 0; probe <= maxProbe; probe++) {
+            Entry entry = readEntry(slot);
+            if (entry == null) return null;
+            if (entry.hash == hash && entry.keyLength == key.length) {
+                // The record starts with the word, which must match in full
+                byte[] data = readData(entry.key, entry.size);
+                if (data != null && Arrays.equals(data, 0, key.length, key, 0, key.length))
+                    return PostingsList.decode(ByteBuffer.wrap(data, key.length, data.length - key.length));
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+
+    /**
+     *  Returns the terms starting with the prefix, in sorted order.
+     */
+    public List<String> termsWithPrefix( String prefix ) {
+        return lexicon.termsWithPrefix(prefix);
     }
 
 
@@ -0,0 +1,239 @@
+package ir;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *   Personalized PageRank computed at query time.
+ *
+ *   The random surfer jumps to the top tf-idf hits of the query (the
+ *   teleport set, weighted by their tf-idf scores) instead of to any
+ *   document. The ranks are approximated by forward push: every node
+ *   has a rank p and a residual r, which starts as the teleport vector.
+ *   Pushing a node moves BORED of its residual to its rank and spreads
+ *   the rest over its outlinks (or back to the teleport set, for a
+ *   dangling node). Only nodes whose residual exceeds a tolerance per
+ *   outlink are pushed, so the work depends on the tolerance and not on
+ *   the size of the graph.
+ *
+ *   The pushing is done in rounds, starting with a coarse tolerance
+ *   which is lowered tenfold every round, down to MIN_TOLERANCE. Each
+ *   round refines the ranks of the previous one, and the pushing stops
+ *   at the deadline whatever the residual, so a query gets the most
+ *   accurate ranks its time budget allows.
+ *
+ *   A query borrows a set of work arrays from a pool and gives it back
+ *   when done. At most one set per processor is ever allocated (more
+ *   would not make the pushing faster), so the memory use is bounded and
+ *   a query only clears the entries it touched, even if every query runs
+ *   on a new thread.
+ */
+public class PersonalizedPageRank {
+
+    /** Number of top tf-idf hits in the teleport set. */
+    static final int TELEPORT_SET_SIZE = 10;
+
+    /** Nodes with a residual of at most the tolerance per outlink are not pushed. */
+    static final double START_TOLERANCE = 1e-4;
+    static final double MIN_TOLERANCE = 1e-6;
+
+    /** Time budget of one query, in milliseconds. */
+    static final long DEADLINE_MS = 30;
+
+    /** The link graph. */
+    final DocumentLinks links;
+
+    /** Maximal number of sets of work arrays. */
+    static final int MAX_WORKSPACES = Runtime.getRuntime().availableProcessors();
+
+    /** The sets of work arrays not in use. */
+    final ArrayBlockingQueue<Workspace> workspaces = new ArrayBlockingQueue<Workspace>( MAX_WORKSPACES );
+
+    /** Number of sets of work arrays allocated so far. */
+    final AtomicInteger allocated = new AtomicInteger();
+
+
+    /* --------------------------------------------- */
+
+
+    public PersonalizedPageRank( DocumentLinks links ) {
+        this.links = links;
+    }
+
+
+    /**
+     *   Returns a set of work arrays not in use, allocating a new one if
+     *   there are fewer than MAX_WORKSPACES, or else waiting for one.
+     */
+    Workspace borrow() throws InterruptedException {
+        Workspace w = workspaces.poll();
+        if ( w != null ) {
+            return w;
+        }
+        if ( allocated.incrementAndGet() <= MAX_WORKSPACES ) {
+            return new Workspace( links.graph.numberOfNodes );
+        }
+        allocated.decrementAndGet();
+        return workspaces.take();
+    }
+
+
+    /**
+     *   The work arrays of one query.
+     */
+    static class Workspace {
+
+        /** Ranks and residuals. */
+        final double[] p;
+        final double[] r;
+
+        /** FIFO queue of nodes to push, and whether a node is in it. */
+        final int[] queue;
+        final boolean[] queued;
+
+        /** The nodes with a non-zero rank or residual, to be cleared. */
+        final int[] touched;
+        final boolean[] isTouched;
+        int numberOfTouched = 0;
+
+        Workspace( int n ) {
+            p = new double[n];
+            r = new double[n];
+            queue = new int[n];
+            queued = new boolean[n];
+            touched = new int[n];
+            isTouched = new boolean[n];
+        }
+
+        void touch( int node ) {
+            if ( !isTouched[node] ) {
+                isTouched[node] = true;
+                touched[numberOfTouched++] = node;
+            }
+        }
+
+        void clear() {
+            for ( int k=0; k<numberOfTouched; k++ ) {
+                int node = touched[k];
+                p[node] = 0;
+                r[node] = 0;
+                queued[node] = false;
+                isTouched[node] = false;
+            }
+            numberOfTouched = 0;
+        }
+    }
+
+
+    /* --------------------------------------------- */
+
+
+    /**
+     *   Replaces the scores of the tf-idf ranked result by their
+     *   personalized PageRank. The result must be sorted by tf-idf score;
+     *   its top hits are the teleport set. Documents outside the link
+     *   graph get score 0. If none of the top hits are in the graph (or
+     *   the thread is interrupted while waiting for work arrays), the
+     *   scores are left unchanged.
+     */
+    public void rank( Index index, PostingsList result ) {
+        LinkGraph graph = links.graph;
+        int[] node = new int[result.size()];
+        int[] teleport = new int[TELEPORT_SET_SIZE];
+        double[] weight = new double[TELEPORT_SET_SIZE];
+        int teleportSize = 0;
+        double totalWeight = 0;
+        for ( int i=0; i<result.size(); i++ ) {
+            node[i] = links.node( index, result.get( i ).docID );
+            if ( node[i] >= 0 && teleportSize < TELEPORT_SET_SIZE && result.get( i ).score > 0 ) {
+                teleport[teleportSize] = node[i];
+                weight[teleportSize] = result.get( i ).score;
+                totalWeight += weight[teleportSize];
+                teleportSize++;
+            }
+        }
+        if ( teleportSize == 0 ) {
+            return;
+        }
+        for ( int t=0; t<teleportSize; t++ ) {
+            weight[t] /= totalWeight;
+        }
+
+        Workspace w;
+        try {
+            w = borrow();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            double[] p = w.p;
+            double[] r = w.r;
+            int[] queue = w.queue;
+            boolean[] queued = w.queued;
+            int n = graph.numberOfNodes;
+            for ( int t=0; t<teleportSize; t++ ) {
+                w.touch( teleport[t] );
+                r[teleport[t]] += weight[t];
+            }
+            long deadline = System.nanoTime() + DEADLINE_MS * 1000000;
+            int pushes = 0;
+            boolean late = false;
+            for ( double tolerance=START_TOLERANCE; tolerance>=MIN_TOLERANCE && !late; tolerance/=10 ) {
+                // Queue the nodes over the new tolerance
+                int head = 0, size = 0;
+                for ( int k=0; k<w.numberOfTouched; k++ ) {
+                    int u = w.touched[k];
+                    if ( r[u] > tolerance * Math.max( 1, graph.outDegree( u ))) {
+                        queued[u] = true;
+                        queue[size++] = u;
+                    }
+                }
+                while ( size > 0 ) {
+                    if ( ( ++pushes & 63 ) == 0 && System.nanoTime() > deadline ) {
+                        late = true;
+                        break;
+                    }
+                    int u = queue[head];
+                    head = ( head + 1 ) % n;
+                    size--;
+                    queued[u] = false;
+                    double residual = r[u];
+                    r[u] = 0;
+                    p[u] += PageRankSparse.BORED * residual;
+                    double spread = ( 1 - PageRankSparse.BORED ) * residual;
+                    int out = graph.outDegree( u );
+                    if ( out > 0 ) {
+                        double share = spread / out;
+                        for ( int k=graph.rowPtr[u]; k<graph.rowPtr[u+1]; k++ ) {
+                            int v = graph.colIdx[k];
+                            w.touch( v );
+                            r[v] += share;
+                            if ( !queued[v] && r[v] > tolerance * Math.max( 1, graph.outDegree( v ))) {
+                                queued[v] = true;
+                                queue[( head + size++ ) % n] = v;
+                            }
+                        }
+                    } else {
+                        // A dangling node jumps back to the teleport set
+                        for ( int t=0; t<teleportSize; t++ ) {
+                            int v = teleport[t];
+                            r[v] += spread * weight[t];
+                            if ( !queued[v] && r[v] > tolerance * Math.max( 1, graph.outDegree( v ))) {
+                                queued[v] = true;
+                                queue[( head + size++ ) % n] = v;
+                            }
+                        }
+                    }
+                }
+            }
+            for ( int i=0; i<result.size(); i++ ) {
+                result.get( i ).score = node[i] >= 0 ? p[node[i]] : 0;
+            }
+        } finally {
+            w.clear();
+            workspaces.offer( w );
+        }
+    }
+}
@@ -7,9 +7,14 @@
 
 package ir;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
 
 public class PostingsList {
     
@@ -91,8 +96,95 @@ public class PostingsList {
         return str;
     }
 
+    /**
+     *  Writes the list in binary: the number of documents, then for every
+     *  document the gap from the previous docID, the number of offsets and
+     *  the gaps between the offsets, all as variable-length integers
+     *  (7 bits per byte, high bit set on all but the last byte).
+     */
+    public void encode( DataOutput out ) throws IOException {
+        writeVInt(out, list.size());
+        int prevDocID = 0;
+        for (int i = 0; i < list.size(); i++) {
+            PostingsEntry entry = list.get(i);
+            writeVInt(out, entry.docID - prevDocID);
+            prevDocID = entry.docID;
+            writeVInt(out, entry.offsets.size());
+            int prevOffset = 0;
+            for (int j = 0; j < entry.offsets.size(); j++) {
+                int offset = entry.offsets.get(j);
+                writeVInt(out, offset - prevOffset);
+                prevOffset = offset;
+            }
+        }
+    }
+
+    /** Reads a list written by encode(). */
+    public static PostingsList decode( ByteBuffer in ) {
+        PostingsList p = new PostingsList();
+        int size = readVInt(in);
+        int docID = 0;
+        for (int i = 0; i < size; i++) {
+            docID += readVInt(in);
+            int n = readVInt(in);
+            int offset = readVInt(in);
+            PostingsEntry entry = new PostingsEntry(docID, offset);
+            for (int j = 1; j < n; j++) {
+                offset += readVInt(in);
+                entry.offsets.add(offset);
+            }
+            p.list.add(entry);
+            p.idMap.put(docID, entry);
+        }
+        return p;
+    }
+
+    private static void writeVInt( DataOutput out, int value ) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVInt( ByteBuffer in ) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     *  Appends the entries of <code>p2</code>, except the documents in
+     *  <code>excluded</code>. All documents in <code>p2</code> must come
+     *  after the ones in this list. The entries are shared, not copied.
+     */
+    public void append( PostingsList p2, Set<Integer> excluded ) {
+        for (int i = 0; i < p2.size(); i++) {
+            PostingsEntry entry = p2.get(i);
+            if (excluded.contains(entry.docID)) continue;
+            list.add(entry);
+            idMap.put(entry.docID, entry);
+        }
+    }
+
+    /** Concatenates lists with increasing, disjoint docIDs. */
+    public static PostingsList concat( List<PostingsList> lists, Set<Integer> excluded ) {
+        PostingsList newList = new PostingsList();
+        for (PostingsList p : lists) {
+            newList.append(p, excluded);
+        }
+        return newList;
+    }
+
     //Merge p2 into p1
     public void mergeLists(PostingsList p2) {
+        if (p2 == null) return;
         for (int i = 0; i < p2.size(); i++) {
             for (int j = 0; j < p2.get(i).offsets.size(); j++) {
                 add(p2.get(i).docID, p2.get(i).offsets.get(j));
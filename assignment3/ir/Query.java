@@ -8,9 +8,11 @@
 package ir;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.HashSet;
+import java.util.PriorityQueue;
 import java.util.StringTokenizer;
 import java.util.Iterator;
 import java.nio.charset.*;
@@ -54,6 +56,12 @@ public class Query {
      *  (only used in assignment 3).
      */
     double beta = 1 - alpha;
+
+    /**
+     *  Maximal number of terms relevance feedback adds to the query. Only
+     *  the terms with the highest feedback weight times idf are added.
+     */
+    static final int MAX_FEEDBACK_TERMS = 50;
     
     
     /**
@@ -109,6 +117,10 @@ public class Query {
     /**
      *  Expands the Query using Relevance Feedback
      *
+     *  The feedback weight of a term is beta times its average length-normalized
+     *  frequency in the relevant documents. Only the MAX_FEEDBACK_TERMS terms
+     *  with the highest feedback weight times idf are added to the query.
+     *
      *  @param results The results of the previous query.
      *  @param docIsRelevant A boolean array representing which query results the user deemed relevant.
      *  @param engine The search engine object
@@ -124,21 +136,113 @@ public class Query {
             t.weight = t.weight * alpha;
             terms.put(t.term, t.weight);
         }
-        //Weight terms of relevant documents
+        int numRelevant = 0;
+        for (int i = 0; i < docIsRelevant.length; i++) {
+            if (docIsRelevant[i]) numRelevant++;
+        }
+        if (numRelevant == 0) {
+            rebuild(terms);
+            return;
+        }
+        //Sum the length-normalized term vectors of the relevant documents
+        ForwardIndex forwardIndex = engine.indexer.forwardIndex;
+        int[] ids = new int[0];
+        double[] weights = new double[0];
+        HashMap<String, Double> other = new HashMap<String, Double>();
         for (int i = 0; i < docIsRelevant.length; i++) {
             if (docIsRelevant[i]) {
-                ArrayList<QueryTerm> tokens = tokenizeDoc(results.get(i).docID, engine);
-                for (QueryTerm t : tokens) {
-                    if (terms.containsKey(t.term)) {
-                        double score = terms.get(t.term);
-                        terms.remove(t.term);
-                        terms.put(t.term, score + (beta * t.weight));
-                    } else {
-                        terms.put(t.term, beta * t.weight);
+                int docID = results.get(i).docID;
+                ForwardIndex.Vector v = forwardIndex == null ? null : forwardIndex.get(docID);
+                if (v != null) {
+                    Integer len = engine.index.docLengths.get(docID);
+                    double scale = beta / numRelevant / (len == null || len == 0 ? 1 : len);
+                    int[] newIds = new int[ids.length + v.size];
+                    double[] newWeights = new double[ids.length + v.size];
+                    int n = merge(ids, weights, v, scale, newIds, newWeights);
+                    ids = Arrays.copyOf(newIds, n);
+                    weights = Arrays.copyOf(newWeights, n);
+                } else {
+                    // Not in the forward index, read the document itself
+                    ArrayList<QueryTerm> tokens = tokenizeDoc(docID, engine);
+                    double len = 0;
+                    for (QueryTerm t : tokens) len += t.weight;
+                    for (QueryTerm t : tokens) {
+                        other.merge(t.term, beta / numRelevant * t.weight / Math.max(len, 1), Double::sum);
                     }
                 }
             }
         }
+        //Keep the top terms by weight times idf, using a heap of bounded size
+        IndexSnapshot index = engine.searcher.snapshot();
+        double numDocs = engine.index.docLengths.size();
+        PriorityQueue<QueryTerm> top = new PriorityQueue<QueryTerm>(MAX_FEEDBACK_TERMS + 1,
+            (t1, t2) -> Double.compare(t1.weight, t2.weight));
+        //Sum the weights of both kinds of documents first, so every term is offered once
+        HashMap<String, Double> feedback = new HashMap<String, Double>();
+        HashMap<String, Integer> docFrequency = new HashMap<String, Integer>();
+        for (int i = 0; i < ids.length; i++) {
+            String term = forwardIndex.terms.term(ids[i]);
+            feedback.put(term, weights[i]);
+            docFrequency.put(term, forwardIndex.docFrequency(ids[i]));
+        }
+        for (Map.Entry<String, Double> e : other.entrySet()) {
+            feedback.merge(e.getKey(), e.getValue(), Double::sum);
+        }
+        for (Map.Entry<String, Double> e : feedback.entrySet()) {
+            Integer df = docFrequency.get(e.getKey());
+            if (df == null) {
+                PostingsList postings = index.getPostings(e.getKey());
+                df = postings == null ? 1 : postings.size();
+            }
+            offer(top, e.getKey(), e.getValue() * Math.log(numDocs / Math.max(df, 1)));
+        }
+        for (QueryTerm t : top) {
+            terms.merge(t.term, feedback.get(t.term), Double::sum);
+        }
+        rebuild(terms);
+    }
+
+
+    /**
+     *  Adds the term to the heap of the best MAX_FEEDBACK_TERMS terms,
+     *  if its score is high enough.
+     */
+    private void offer( PriorityQueue<QueryTerm> top, String term, double score ) {
+        if (top.size() < MAX_FEEDBACK_TERMS) {
+            top.add(new QueryTerm(term, score));
+        } else if (score > top.peek().weight) {
+            top.poll();
+            top.add(new QueryTerm(term, score));
+        }
+    }
+
+
+    /**
+     *  Merges the sorted vector (ids, weights) with <code>v</code> scaled by
+     *  <code>scale</code> into (newIds, newWeights).
+     *
+     *  @return the length of the merged vector.
+     */
+    private static int merge( int[] ids, double[] weights, ForwardIndex.Vector v, double scale, int[] newIds, double[] newWeights ) {
+        int i = 0, j = 0, n = 0;
+        while (i < ids.length || j < v.size) {
+            if (j == v.size || (i < ids.length && ids[i] < v.termIDs[j])) {
+                newIds[n] = ids[i];
+                newWeights[n++] = weights[i++];
+            } else if (i == ids.length || v.termIDs[j] < ids[i]) {
+                newIds[n] = v.termIDs[j];
+                newWeights[n++] = scale * v.counts[j++];
+            } else {
+                newIds[n] = ids[i];
+                newWeights[n++] = weights[i++] + scale * v.counts[j++];
+            }
+        }
+        return n;
+    }
+
+
+    /** Replaces the query terms by the given terms and weights. */
+    private void rebuild( HashMap<String, Double> terms ) {
         queryterm = new ArrayList<QueryTerm>();
         for (Map.Entry<String, Double> e : terms.entrySet()) {
             QueryTerm term = new QueryTerm(e.getKey(), e.getValue());
@@ -150,11 +254,9 @@ public class Query {
         HashMap<String, Integer> tokens = new HashMap<String, Integer>();
         int numTokens = 0;
         try {
-            File dokDir = new File( engine.dirNames.get(0) );
-            String[] fs = dokDir.list();
-            File f = new File( dokDir, fs[docID] );
-            Reader reader = new InputStreamReader( new FileInputStream(f), StandardCharsets.UTF_8 );
-            Tokenizer tok = new Tokenizer( reader, true, false, true, engine.indexer.patterns_file );
+            File f = new File( engine.index.docNames.get(docID) );
+            Reader reader = new Utf8MappedReader( f );
+            Tokenizer tok = engine.indexer.tokenizer( reader );
 
             while ( tok.hasMoreTokens() ) {
                 String token = tok.nextToken();
@@ -164,6 +266,7 @@ public class Query {
                 tokens.remove(token);
                 tokens.put(token, count + 1);
             }
+            reader.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -12,5 +12,5 @@ package ir;
  *  the course. 
  */
 public enum RankingType {
-    TF_IDF, PAGERANK, COMBINATION, HITS
+    TF_IDF, PAGERANK, COMBINATION, HITS, PERSONALIZED
 }
\ No newline at end of file
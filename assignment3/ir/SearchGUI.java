@@ -70,6 +70,7 @@ public class SearchGUI extends JFrame {
     JRadioButtonMenuItem pagerankItem = new JRadioButtonMenuItem( "PageRank" );
     JRadioButtonMenuItem combinationItem = new JRadioButtonMenuItem( "Combination" );
     JRadioButtonMenuItem hitsItem = new JRadioButtonMenuItem( "HITS" );
+    JRadioButtonMenuItem personalizedItem = new JRadioButtonMenuItem( "Personalized PageRank" );
     ButtonGroup queries = new ButtonGroup();
     ButtonGroup ranking = new ButtonGroup();
 
@@ -108,6 +109,7 @@ public class SearchGUI extends JFrame {
         rankingMenu.add( pagerankItem );
         rankingMenu.add( combinationItem );
         rankingMenu.add( hitsItem );
+        rankingMenu.add( personalizedItem );
         queries.add( intersectionItem );
         queries.add( phraseItem );
         queries.add( rankedItem );
@@ -115,6 +117,7 @@ public class SearchGUI extends JFrame {
         ranking.add( pagerankItem );
         ranking.add( combinationItem );
         ranking.add( hitsItem );
+        ranking.add( personalizedItem );
         intersectionItem.setSelected( true );
         tfidfItem.setSelected( true );
         p.add( menuBar );
@@ -163,13 +166,10 @@ public class SearchGUI extends JFrame {
                     query.relevanceFeedback( results, relevant, engine );
                 }
                 
-                // Search and print results. Access to the index is synchronized since
-                // we don't want to search at the same time we're indexing new files
-                // (this might corrupt the index).
+                // Search and print results. The searcher works on a snapshot of
+                // the index, so there is no need to lock out the indexer.
                 long startTime = System.currentTimeMillis();
-                synchronized ( engine.indexLock ) {
-                    results = engine.searcher.search( query, queryType, rankingType );
-                }
+                results = engine.searcher.search( query, queryType, rankingType );
                 long elapsedTime = System.currentTimeMillis() - startTime;
                 // for (int i = 0; i < query.queryterm.size(); i++) {
                 //     System.err.print(query.queryterm.get(i).term + " ");                    
@@ -264,6 +264,13 @@ public class SearchGUI extends JFrame {
             }
             };
         hitsItem.addActionListener( setHitsRanking );
+
+        Action setPersonalizedRanking = new AbstractAction() {
+            public void actionPerformed( ActionEvent e ) {
+                rankingType = RankingType.PERSONALIZED;
+            }
+            };
+        personalizedItem.addActionListener( setPersonalizedRanking );
     }
 
 
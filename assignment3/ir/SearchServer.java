@@ -0,0 +1,241 @@
+package ir;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ *   A headless HTTP front end to the searcher, listening on the loopback
+ *   interface. A query is sent as
+ *
+ *     GET /search?q=some+words&type=RANKED_QUERY&ranking=TF_IDF&limit=10
+ *
+ *   and the results are returned as JSON. Every query runs on its own
+ *   thread (a virtual thread if the JVM supports them). At most
+ *   MAX_CONCURRENT_QUERIES queries run at the same time; further queries
+ *   are rejected with 503, and a query that does not finish within its
+ *   deadline is answered with 504. A search cannot be stopped once it
+ *   has started, so a query keeps its permit until its search finishes,
+ *   even if it was already answered with 504.
+ */
+public class SearchServer {
+
+    /** Maximal number of queries executing at the same time. */
+    static final int MAX_CONCURRENT_QUERIES = 64;
+
+    /** Default per-query deadline, can be lowered with the timeout parameter. */
+    static final long DEFAULT_TIMEOUT_MS = 2000;
+
+    /** Default number of results returned. */
+    static final int DEFAULT_LIMIT = 10;
+
+    /** The engine holding the index and the searcher. */
+    Engine engine;
+
+    /** The HTTP server. */
+    HttpServer server;
+
+    /** Runs the queries. */
+    ExecutorService executor = newQueryExecutor();
+
+    /** Admission control: one permit per running search. */
+    Semaphore permits = new Semaphore( MAX_CONCURRENT_QUERIES );
+
+
+    /* ----------------------------------------------- */
+
+
+    public SearchServer( Engine engine, int port ) throws IOException {
+        this.engine = engine;
+        server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+        server.createContext( "/search", this::handleSearch );
+        server.setExecutor( executor );
+    }
+
+
+    /**
+     *  Returns an executor with one virtual thread per task, or a cached
+     *  thread pool if the JVM does not have virtual threads.
+     */
+    static ExecutorService newQueryExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+        } catch ( ReflectiveOperationException e ) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+
+    public void start() {
+        server.start();
+        System.err.println( "Search server listening on " + server.getAddress() );
+    }
+
+
+    public void stop() {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Handles one /search request.
+     */
+    void handleSearch( HttpExchange exchange ) throws IOException {
+        HashMap<String,String> params = parseQuery( exchange.getRequestURI().getRawQuery() );
+        String queryString = params.get( "q" );
+        QueryType queryType;
+        RankingType rankingType;
+        int limit;
+        long timeout;
+        try {
+            queryType = QueryType.valueOf( params.getOrDefault( "type", "INTERSECTION_QUERY" ));
+            rankingType = RankingType.valueOf( params.getOrDefault( "ranking", "TF_IDF" ));
+            limit = Integer.parseInt( params.getOrDefault( "limit", "" + DEFAULT_LIMIT ));
+            timeout = Math.min( DEFAULT_TIMEOUT_MS, Long.parseLong( params.getOrDefault( "timeout", "" + DEFAULT_TIMEOUT_MS )));
+        } catch ( IllegalArgumentException e ) {
+            sendError( exchange, 400, "Bad parameter: " + e.getMessage() );
+            return;
+        }
+        if ( queryString == null ) {
+            sendError( exchange, 400, "Missing parameter q" );
+            return;
+        }
+        if ( !permits.tryAcquire() ) {
+            sendError( exchange, 503, "Too many queries" );
+            return;
+        }
+        // The permit is released by whoever sets this: the search task
+        // when it finishes, or this handler if the task never started
+        AtomicBoolean claimed = new AtomicBoolean();
+        Future<PostingsList> future;
+        long startTime = System.nanoTime();
+        try {
+            Query query = new Query( queryString.toLowerCase().trim() );
+            future = executor.submit( () -> {
+                if ( !claimed.compareAndSet( false, true )) {
+                    return null;
+                }
+                try {
+                    return engine.searcher.search( query, queryType, rankingType );
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch ( RuntimeException e ) {
+            if ( claimed.compareAndSet( false, true )) {
+                permits.release();
+            }
+            throw e;
+        }
+        PostingsList results;
+        try {
+            results = future.get( timeout, TimeUnit.MILLISECONDS );
+        } catch ( TimeoutException | InterruptedException e ) {
+            future.cancel( true );
+            if ( claimed.compareAndSet( false, true )) {
+                permits.release();
+            }
+            if ( e instanceof TimeoutException ) {
+                sendError( exchange, 504, "Query did not finish in " + timeout + " ms" );
+            } else {
+                sendError( exchange, 503, "Interrupted" );
+            }
+            return;
+        } catch ( ExecutionException e ) {
+            e.getCause().printStackTrace();
+            sendError( exchange, 500, "" + e.getCause() );
+            return;
+        }
+        double elapsedTime = (System.nanoTime() - startTime) / 1e6;
+        send( exchange, 200, toJson( queryString, queryType, rankingType, results, limit, elapsedTime ));
+    }
+
+
+    /**
+     *  Formats the first <code>limit</code> results as JSON.
+     */
+    String toJson( String queryString, QueryType queryType, RankingType rankingType, PostingsList results, int limit, double elapsedTime ) {
+        StringBuilder json = new StringBuilder();
+        int total = results == null ? 0 : results.size();
+        json.append( "{\"query\":" ).append( quote( queryString ))
+            .append( ",\"type\":\"" ).append( queryType ).append( "\"" )
+            .append( ",\"ranking\":\"" ).append( rankingType ).append( "\"" )
+            .append( ",\"total\":" ).append( total )
+            .append( ",\"elapsed_ms\":" ).append( String.format( "%.3f", elapsedTime ))
+            .append( ",\"results\":[" );
+        for ( int i=0; i<total && i<limit; i++ ) {
+            PostingsEntry entry = results.get( i );
+            if ( i > 0 ) json.append( "," );
+            json.append( "{\"docID\":" ).append( entry.docID )
+                .append( ",\"name\":" ).append( quote( engine.index.docNames.get( entry.docID )))
+                .append( ",\"score\":" ).append( Double.isFinite( entry.score ) ? entry.score : 0 )
+                .append( "}" );
+        }
+        return json.append( "]}" ).toString();
+    }
+
+
+    /**
+     *  Returns the string as a JSON string literal.
+     */
+    static String quote( String s ) {
+        if ( s == null ) return "null";
+        StringBuilder sb = new StringBuilder( "\"" );
+        for ( int i=0; i<s.length(); i++ ) {
+            char c = s.charAt( i );
+            if ( c == '"' || c == '\\' ) {
+                sb.append( '\\' ).append( c );
+            } else if ( c < 0x20 ) {
+                sb.append( String.format( "\\u%04x", (int)c ));
+            } else {
+                sb.append( c );
+            }
+        }
+        return sb.append( '"' ).toString();
+    }
+
+
+    /**
+     *  Decodes the parameters of a URL query string.
+     */
+    static HashMap<String,String> parseQuery( String rawQuery ) {
+        HashMap<String,String> params = new HashMap<String,String>();
+        if ( rawQuery == null ) return params;
+        for ( String pair : rawQuery.split( "&" )) {
+            int i = pair.indexOf( '=' );
+            if ( i > 0 ) {
+                params.put( URLDecoder.decode( pair.substring( 0, i ), StandardCharsets.UTF_8 ),
+                            URLDecoder.decode( pair.substring( i+1 ), StandardCharsets.UTF_8 ));
+            }
+        }
+        return params;
+    }
+
+
+    void sendError( HttpExchange exchange, int status, String message ) throws IOException {
+        send( exchange, status, "{\"error\":" + quote( message ) + "}" );
+    }
+
+
+    void send( HttpExchange exchange, int status, String body ) throws IOException {
+        byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+        exchange.getResponseHeaders().set( "Content-Type", "application/json; charset=utf-8" );
+        exchange.sendResponseHeaders( status, bytes.length );
+        try ( OutputStream out = exchange.getResponseBody() ) {
+            out.write( bytes );
+        }
+    }
+}
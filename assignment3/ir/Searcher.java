@@ -11,33 +11,59 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *  Searches an index for results of a query.
  */
 public class Searcher {
 
-    /** The index to be searched by this Searcher. */
-    Index index;
+    /** 
+     *  The published snapshots of the index. Every search works on the
+     *  snapshot that was current when it started, so searches never wait
+     *  for the indexer and never see a half-indexed document.
+     */
+    AtomicReference<IndexSnapshot> snapshot;
 
     /** The k-gram index to be searched by this Searcher */
     KGramIndex kgIndex;
 
-    /** PageRankSparse object to be used for retrieving pagerank */
-    PageRankSparse prSparse;
+    /** The PageRank scores of the documents, or null if there are none */
+    PageRankScores pageRank;
+
+    /** The link graph of the documents, or null if there is none */
+    DocumentLinks links;
+
+    /** Personalized PageRank over the link graph, or null if there is no link graph */
+    PersonalizedPageRank personalized;
 
     /** Weightings for TFIDF and pagerank */
     final double TFIDFWEIGHT = 0.4;
     final double PRWEIGHT = 0.6;
     
     /** Constructor */
-    public Searcher( Index index, KGramIndex kgIndex ) {
-        this.index = index;
+    public Searcher( AtomicReference<IndexSnapshot> snapshot, KGramIndex kgIndex ) {
+        this.snapshot = snapshot;
         this.kgIndex = kgIndex;
     }
 
-    public void setPageRankSpare( PageRankSparse prSparse ) {
-        this.prSparse = prSparse;
+    /** Constructor for an index that does not change while searching. */
+    public Searcher( Index index, KGramIndex kgIndex ) {
+        this( new AtomicReference<IndexSnapshot>( new IndexSnapshot( index )), kgIndex );
+    }
+
+    /** Returns the current snapshot of the index. */
+    public IndexSnapshot snapshot() {
+        return snapshot.get();
+    }
+
+    public void setPageRankScores( PageRankScores pageRank ) {
+        this.pageRank = pageRank;
+    }
+
+    public void setDocumentLinks( DocumentLinks links ) {
+        this.links = links;
+        this.personalized = new PersonalizedPageRank( links );
     }
 
     /**
@@ -47,6 +73,8 @@ public class Searcher {
     public PostingsList search( Query query, QueryType queryType, RankingType rankingType ) {         
         if (query.queryterm.size() < 1) return null;
 
+        Index index = snapshot.get();
+
         boolean wildcard = false;
         for (int i = 0; i < query.queryterm.size(); i++) 
             if (query.queryterm.get(i).term.contains("*")) 
@@ -54,38 +82,63 @@ public class Searcher {
 
         if (wildcard) {
             if (queryType == QueryType.INTERSECTION_QUERY)
-                return generateWildcardIntersection(query);
+                return generateWildcardIntersection(index, query);
             else if (queryType == QueryType.PHRASE_QUERY)
-                return generateWildcardPhrase(query);
+                return generateWildcardPhrase(index, query);
             else
-                return generateWildcardRanked(query, queryType, rankingType);
+                return generateWildcardRanked(index, query, queryType, rankingType);
         } else {
-            return handleSearchType(query, queryType, rankingType);
+            return handleSearchType(index, query, queryType, rankingType);
         }
     }
 
-    private PostingsList handleSearchType(Query query, QueryType queryType, RankingType rankingType) {
+    private PostingsList handleSearchType(Index index, Query query, QueryType queryType, RankingType rankingType) {
         switch (queryType) {
             case INTERSECTION_QUERY:
-                return intersectionSearch(query, 1, index.getPostings(query.queryterm.get(0).term));
+                return intersectionSearch(index, query, 1, index.getPostings(query.queryterm.get(0).term));
             case PHRASE_QUERY:
-                return phraseSearch(query, 1, index.getPostings(query.queryterm.get(0).term));
+                return phraseSearch(index, query, 1, index.getPostings(query.queryterm.get(0).term));
             case RANKED_QUERY:
                 switch(rankingType) {
                     case TF_IDF:
-                        return rankedSearchTFIDF(query);
+                        return rankedSearchTFIDF(index, query);
                     case PAGERANK:
-                        return rankedSearchPR(query);
+                        return rankedSearchPR(index, query);
                     case COMBINATION:
-                        return rankedSearchCombination(query);
+                        return rankedSearchCombination(index, query);
                     case HITS:
-                        return rankedSearchHits(query);
+                        return rankedSearchHits(index, query);
+                    case PERSONALIZED:
+                        return rankedSearchPersonalized(index, query);
                 }
         }
         return null;
     }
 
-    private PostingsList generateWildcardIntersection(Query query) {
+    /**
+     *  Returns the terms matching a query term ending with a wildcard,
+     *  e.g. "ret*". The index lists them by prefix if it can; otherwise
+     *  they are found through the k-gram index.
+     */
+    private List<String> expandTrailingWildcard(Index index, String term) {
+        String prefix = term.substring(0, term.length() - 1);
+        List<String> words = index.termsWithPrefix(prefix);
+        if (words != null) return words;
+        words = new ArrayList<String>();
+        String term2 = "^" + term;
+        String kgram = term2.substring(term2.length() - 3, term2.length() - 1);
+        List<KGramPostingsEntry> entries = kgIndex.getPostings(kgram);
+        if (entries == null) return words;
+        String word;
+        for (int j = 0; j < entries.size(); j++) {
+            word = kgIndex.getTermByID(entries.get(j).tokenID);
+            if (word.startsWith(prefix))
+                words.add(word);
+        }
+        return words;
+    }
+
+    private PostingsList generateWildcardIntersection(Index index, Query query) {
         PostingsList postings = new PostingsList();
         PostingsList[] list = new PostingsList[query.queryterm.size()];
 
@@ -101,21 +154,14 @@ public class Searcher {
                 List<KGramPostingsEntry> entries = kgIndex.getPostings(kgram);
                 String word;
                 for (int j = 0; j < entries.size(); j++) {
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
+                    word = kgIndex.getTermByID(entries.get(j).tokenID);
                     if (word.endsWith(term.substring(1)))
                         wordList.mergeLists(index.getPostings(word));
                         
                 }
             } else if (term.endsWith("*")) {
-                String term2 = "^" + term;
-                String kgram = term2.substring(term2.length() - 3, term2.length() - 1);
-                List<KGramPostingsEntry> entries = kgIndex.getPostings(kgram);
-                String word;
-                for (int j = 0; j < entries.size(); j++) {
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
-                    if (word.startsWith(term.substring(0, term.length() - 1)))
-                        wordList.mergeLists(index.getPostings(word));
-                }
+                for (String word : expandTrailingWildcard(index, term))
+                    wordList.mergeLists(index.getPostings(word));
             } else {
                 String term2 = "^" + term + "$";
                 int wcPos = term2.indexOf("*");
@@ -127,7 +173,7 @@ public class Searcher {
                 String word;
                 for (int j = 0; j < entries.size(); j++) {
                     wcPos = term.indexOf("*");
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
+                    word = kgIndex.getTermByID(entries.get(j).tokenID);
                     if (word.startsWith(term.substring(0, wcPos)) &&
                         word.endsWith(term.substring(wcPos + 1, term.length()))) 
                         wordList.mergeLists(index.getPostings(word));
@@ -144,7 +190,7 @@ public class Searcher {
         return postings;
     }
 
-    private PostingsList generateWildcardPhrase(Query query) {
+    private PostingsList generateWildcardPhrase(Index index, Query query) {
         PostingsList postings = new PostingsList();
         PostingsList[] list = new PostingsList[query.queryterm.size()];
 
@@ -160,22 +206,13 @@ public class Searcher {
                 List<KGramPostingsEntry> entries = kgIndex.getPostings(kgram);
                 String word;
                 for (int j = 0; j < entries.size(); j++) {
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
+                    word = kgIndex.getTermByID(entries.get(j).tokenID);
                     if (word.endsWith(term.substring(1))) 
                         wordList.mergeLists(index.getPostings(word));
                 }
             } else if (term.endsWith("*")) {
-                String term2 = "^" + term;
-                String kgram = term2.substring(term2.length() - 3, term2.length() - 1);
-                List<KGramPostingsEntry> entries = kgIndex.getPostings(kgram);
-                String word;
-                for (int j = 0; j < entries.size(); j++) {
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
-                    boolean debug = false;
-                    if (word.startsWith(term.substring(0, term.length() - 1))) {
-                        wordList.mergeLists(index.getPostings(word));
-                    }
-                }
+                for (String word : expandTrailingWildcard(index, term))
+                    wordList.mergeLists(index.getPostings(word));
             } else {
                 String term2 = "^" + term + "$";
                 int wcPos = term2.indexOf("*");
@@ -187,7 +224,7 @@ public class Searcher {
                 String word;
                 for (int j = 0; j < entries.size(); j++) {
                     wcPos = term.indexOf("*");
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
+                    word = kgIndex.getTermByID(entries.get(j).tokenID);
                     if (word.startsWith(term.substring(0, wcPos)) &&
                         word.endsWith(term.substring(wcPos + 1, term.length()))) 
                         wordList.mergeLists(index.getPostings(word));
@@ -228,7 +265,7 @@ public class Searcher {
         return postings;
     }
 
-    private PostingsList generateWildcardRanked(Query query, QueryType queryType, RankingType rankingType) {
+    private PostingsList generateWildcardRanked(Index index, Query query, QueryType queryType, RankingType rankingType) {
         PostingsList postings = new PostingsList();
         HashSet<String> set = new HashSet<String>();
 
@@ -244,20 +281,12 @@ public class Searcher {
                 List<KGramPostingsEntry> entries = kgIndex.getPostings(kgram);
                 String word;
                 for (int j = 0; j < entries.size(); j++) {
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
+                    word = kgIndex.getTermByID(entries.get(j).tokenID);
                     if (word.endsWith(term.substring(1)))
                         set.add(word);     
                 }
             } else if (term.endsWith("*")) {
-                String term2 = "^" + term;
-                String kgram = term2.substring(term2.length() - 3, term2.length() - 1);
-                List<KGramPostingsEntry> entries = kgIndex.getPostings(kgram);
-                String word;
-                for (int j = 0; j < entries.size(); j++) {
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
-                    if (word.startsWith(term.substring(0, term.length() - 1)))
-                        set.add(word);
-                }
+                set.addAll(expandTrailingWildcard(index, term));
             } else {
                 String term2 = "^" + term + "$";
                 int wcPos = term2.indexOf("*");
@@ -269,7 +298,7 @@ public class Searcher {
                 String word;
                 for (int j = 0; j < entries.size(); j++) {
                     wcPos = term.indexOf("*");
-                    word = kgIndex.id2term.get(entries.get(j).tokenID);
+                    word = kgIndex.getTermByID(entries.get(j).tokenID);
                     if (word.startsWith(term.substring(0, wcPos)) &&
                         word.endsWith(term.substring(wcPos + 1, term.length()))) 
                         set.add(word);
@@ -281,12 +310,12 @@ public class Searcher {
         for (String word : set) {
             queryStr.append(word).append(" ");
         }
-        postings = handleSearchType(new Query(queryStr.toString()), queryType, rankingType);
+        postings = handleSearchType(index, new Query(queryStr.toString()), queryType, rankingType);
 
         return postings;
     }
 
-    public PostingsList intersectionSearch( Query query, int pos, PostingsList list1 ) {
+    public PostingsList intersectionSearch( Index index, Query query, int pos, PostingsList list1 ) {
         if (list1 == null) return null;
         if (pos >= query.queryterm.size()) return list1;
 
@@ -303,10 +332,10 @@ public class Searcher {
             }
         }
 
-        return intersectionSearch(query, pos + 1, newList);
+        return intersectionSearch(index, query, pos + 1, newList);
     }
 
-    private PostingsList phraseSearch( Query query, int pos, PostingsList list1 ) {
+    private PostingsList phraseSearch( Index index, Query query, int pos, PostingsList list1 ) {
         if (list1 == null) return null;
         if (pos >= query.queryterm.size()) return list1;
 
@@ -335,10 +364,10 @@ public class Searcher {
             }
         }
 
-        return phraseSearch(query, pos + 1, newList);   
+        return phraseSearch(index, query, pos + 1, newList);   
     }
 
-    private PostingsList rankedSearchTFIDF( Query query ) {
+    private PostingsList rankedSearchTFIDF( Index index, Query query ) {
         final int numDocs = index.docLengths.size();
         double[] scores = new double[numDocs];
 
@@ -358,6 +387,7 @@ public class Searcher {
 
         PostingsList newList = new PostingsList();
         for (int i = 0; i < numDocs; i++) {
+            if (scores[i] == 0) continue;
             scores[i] = scores[i] / index.docLengths.get(i);
             if (scores[i] > 0) {
                 newList.add(i, 0);
@@ -369,33 +399,37 @@ public class Searcher {
         return newList;
     }
 
-    private PostingsList rankedSearchPR( Query query) {
-        PostingsList list = rankedSearchTFIDF(query);
+    private PostingsList rankedSearchPR( Index index, Query query) {
+        PostingsList list = rankedSearchTFIDF(index, query);
+        if (pageRank == null) {
+            return list;
+        }
 
         for (int i = 0; i < list.size(); i++) {
             PostingsEntry entry = list.get(i);
-            entry.score = prSparse.getScore(index.docNames.get(entry.docID));
+            entry.score = pageRank.get(entry.docID);
         }
         list.sortList();
-        
-        System.err.println(list.get(0).docID);
 
         return list;
     }
 
-    private PostingsList rankedSearchCombination( Query query ) {
-        PostingsList list = rankedSearchTFIDF(query);
+    private PostingsList rankedSearchCombination( Index index, Query query ) {
+        PostingsList list = rankedSearchTFIDF(index, query);
+        if (pageRank == null) {
+            return list;
+        }
 
         for (int i = 0; i < list.size(); i++) {
             PostingsEntry entry = list.get(i);
-            entry.score = entry.score * TFIDFWEIGHT + prSparse.getScore(index.docNames.get(entry.docID)) * PRWEIGHT;
+            entry.score = entry.score * TFIDFWEIGHT + pageRank.get(entry.docID) * PRWEIGHT;
         }
         list.sortList();
 
         return list;
     }
 
-    private PostingsList union(Query query) {
+    private PostingsList union(Index index, Query query) {
         PostingsList list = new PostingsList();
         for (int i = 0; i < query.length(); i++) {
             String term = query.queryterm.get(i).term;
@@ -408,9 +442,31 @@ public class Searcher {
         return list;
     }
 
-    private PostingsList rankedSearchHits( Query query ) {
-        PostingsList list = union(query);
-        HITSRanker hits = new HITSRanker("linksDavis.txt", "davisTitles.txt", index, list);
+    /**
+     *  Ranks the tf-idf hits by their PageRank personalized to the top
+     *  tf-idf hits (see PersonalizedPageRank). Hits with the same score
+     *  keep their tf-idf order.
+     */
+    private PostingsList rankedSearchPersonalized( Index index, Query query ) {
+        PostingsList list = rankedSearchTFIDF(index, query);
+        if (personalized == null) {
+            return list;
+        }
+        personalized.rank(index, list);
+        list.sortList();
+        return list;
+    }
+
+    /**
+     *  Ranks the documents matching any query term by their hub and
+     *  authority scores in the link graph around them (see HITSRanker).
+     */
+    private PostingsList rankedSearchHits( Index index, Query query ) {
+        PostingsList list = union(index, query);
+        if (links == null) {
+            return rankedSearchTFIDF(index, query);
+        }
+        HITSRanker hits = new HITSRanker(links, index, list);
         list = hits.rank();
         list.sortList();
         return list;
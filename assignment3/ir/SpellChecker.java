@@ -19,7 +19,10 @@ import java.util.Collections;
 
 
 public class SpellChecker {
-    /** The regular inverted index to be used by the spell checker */
+    /** 
+     *  The regular inverted index to be used by the spell checker. Each
+     *  check reads the searcher's current snapshot of it.
+     */
     Index index;
 
     /** K-gram index to be used by the spell checker */
@@ -121,7 +124,7 @@ public class SpellChecker {
     }
 
 
-    private ArrayList<KGramStat> checkHelper(String par) {
+    private ArrayList<KGramStat> checkHelper(Index index, String par) {
         HashSet<String> kgrams = new HashSet<String>();
 
         //Contruct kgrams of query term
@@ -139,8 +142,10 @@ public class SpellChecker {
         //Find words containing kgrams
         HashSet<String> wordSet = new HashSet<String>();
         for (String gram : kgrams) {
-            for (KGramPostingsEntry entry : kgIndex.getPostings(gram)) {
-                wordSet.add(kgIndex.id2term.get(entry.tokenID));
+            List<KGramPostingsEntry> postings = kgIndex.getPostings(gram);
+            if (postings == null) continue;
+            for (KGramPostingsEntry entry : postings) {
+                wordSet.add(kgIndex.getTermByID(entry.tokenID));
             }
         }
 
@@ -204,6 +209,8 @@ public class SpellChecker {
         int size = query.queryterm.size();
         if (size == 0) return null;
 
+        Index index = searcher.snapshot();
+
         ArrayList<ArrayList<KGramStat>> terms = new ArrayList<ArrayList<KGramStat>>();
         String term;
         ArrayList<KGramStat> list; 
@@ -211,7 +218,7 @@ public class SpellChecker {
             list = new ArrayList<KGramStat>();
             term = query.queryterm.get(i).term;
             if (index.getPostings(term) == null)
-                list = checkHelper(term);
+                list = checkHelper(index, term);
             else
                 list.add(new KGramStat(term, 1));
             terms.add(list);
@@ -222,7 +229,7 @@ public class SpellChecker {
         // }
         // System.err.println();
 
-        ArrayList<KGramStat> finalWords = mergeCorrections(terms, limit);
+        ArrayList<KGramStat> finalWords = mergeCorrections(index, terms, limit);
         if (finalWords.size() < limit) 
             size = finalWords.size();
         else
@@ -241,7 +248,7 @@ public class SpellChecker {
      *  <code>qCorrections</code> into one final merging of query phrases. Returns up
      *  to <code>limit</code> corrected phrases.
      */
-    private ArrayList<KGramStat> mergeCorrections(ArrayList<ArrayList<KGramStat>> qCorrections, int limit) {
+    private ArrayList<KGramStat> mergeCorrections(Index index, ArrayList<ArrayList<KGramStat>> qCorrections, int limit) {
         if (qCorrections.size() == 1) return qCorrections.get(0);
 
         ArrayList<KGramStat> phrases = new ArrayList<KGramStat>();
@@ -259,7 +266,7 @@ public class SpellChecker {
                 for (int k = 0; k < (phrases2.size() / 2 + 1) && i < (limit / 2 + 1); k++) {
                     phrase = new StringBuilder(phrases.get(j).token).append(" ").append(phrases2.get(k).token).toString();
                     query = new Query(phrase);
-                    list = searcher.intersectionSearch(query, 1, index.getPostings(query.queryterm.get(0).term));
+                    list = searcher.intersectionSearch(index, query, 1, index.getPostings(query.queryterm.get(0).term));
                     if (list != null) {
                         if (i >= qCorrections.size() - 1 || i >= limit - 1) 
                             phraseTmp.add(new KGramStat(phrase, (phrases.get(j).score + phrases2.get(k).score) * list.size()));
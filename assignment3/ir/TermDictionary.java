@@ -0,0 +1,205 @@
+package ir;
+
+
+/**
+ *   Maps terms to dense integer identifiers 0, 1, 2, ...
+ *
+ *   One dictionary is shared by the indexer, the in-memory index
+ *   segments, the k-gram index and the forward index, so they can all
+ *   refer to terms by termID.
+ *
+ *   Terms are looked up directly from a range of a char array (e.g. the
+ *   buffer of the Tokenizer), so a String is only created the first time
+ *   a term is seen. The table uses open addressing with linear probing.
+ *
+ *   Terms are only added by one thread at a time (adding is synchronized),
+ *   while lookups take no lock: entries are immutable, a slot is only
+ *   ever changed from empty to an entry, and grown arrays are published
+ *   through volatile fields. A lookup running concurrently with the
+ *   insertion of the same term may miss it, which is fine since the term
+ *   is not in any published index yet.
+ */
+public class TermDictionary {
+
+    /** A term with its termID and hash. */
+    private static final class Entry {
+        final String term;
+        final int id;
+        final int hash;
+
+        Entry( String term, int id, int hash ) {
+            this.term = term;
+            this.id = id;
+            this.hash = hash;
+        }
+    }
+
+    /** The hash table; its length is a power of two. */
+    private volatile Entry[] table = new Entry[1024];
+
+    /** The terms, by termID. */
+    private volatile String[] terms = new String[512];
+
+    /** Number of terms. */
+    private volatile int size = 0;
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Returns the termID of the term in <code>buf[start..start+length)</code>,
+     *  adding the term if it is new.
+     */
+    public int lookupOrAdd( char[] buf, int start, int length ) {
+        int h = hash( buf, start, length );
+        Entry e = find( table, h, buf, start, length );
+        if ( e != null ) {
+            return e.id;
+        }
+        return add( new String( buf, start, length ), h );
+    }
+
+
+    /**
+     *  Returns the termID of the term, adding it if it is new.
+     */
+    public int lookupOrAdd( String term ) {
+        int id = lookup( term );
+        return id >= 0 ? id : add( term, hash( term ));
+    }
+
+
+    /**
+     *  Returns the termID of the term, or -1 if it is not in the dictionary.
+     */
+    public int lookup( String term ) {
+        int h = hash( term );
+        Entry[] tab = table;
+        int mask = tab.length - 1;
+        Entry e;
+        for ( int slot = h & mask; ( e = tab[slot] ) != null; slot = (slot + 1) & mask ) {
+            if ( e.hash == h && e.term.equals( term )) {
+                return e.id;
+            }
+        }
+        return -1;
+    }
+
+
+    /** Returns the term with the given termID. */
+    public String term( int id ) {
+        return terms[id];
+    }
+
+
+    /** Number of terms in the dictionary. */
+    public int size() {
+        return size;
+    }
+
+
+    /* ----------------------------------------------- */
+
+
+    /**
+     *  Adds the term, unless another thread added it in the meantime.
+     */
+    private synchronized int add( String term, int h ) {
+        Entry[] tab = table;
+        int mask = tab.length - 1;
+        int slot = h & mask;
+        Entry e;
+        while (( e = tab[slot] ) != null ) {
+            if ( e.hash == h && e.term.equals( term )) {
+                return e.id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int id = size;
+        String[] ts = terms;
+        if ( id == ts.length ) {
+            String[] newTerms = new String[2*id];
+            System.arraycopy( ts, 0, newTerms, 0, id );
+            ts = newTerms;
+        }
+        ts[id] = term;
+        terms = ts;
+        if ( 2*(id+1) > tab.length ) {
+            tab = rehash( tab );
+            mask = tab.length - 1;
+            slot = h & mask;
+            while ( tab[slot] != null ) {
+                slot = (slot + 1) & mask;
+            }
+            tab[slot] = new Entry( term, id, h );
+            table = tab;
+        } else {
+            tab[slot] = new Entry( term, id, h );
+        }
+        size = id + 1;
+        return id;
+    }
+
+
+    private static Entry[] rehash( Entry[] tab ) {
+        Entry[] newTable = new Entry[2*tab.length];
+        int mask = newTable.length - 1;
+        for ( Entry e : tab ) {
+            if ( e != null ) {
+                int slot = e.hash & mask;
+                while ( newTable[slot] != null ) {
+                    slot = (slot + 1) & mask;
+                }
+                newTable[slot] = e;
+            }
+        }
+        return newTable;
+    }
+
+
+    private static Entry find( Entry[] tab, int h, char[] buf, int start, int length ) {
+        int mask = tab.length - 1;
+        Entry e;
+        for ( int slot = h & mask; ( e = tab[slot] ) != null; slot = (slot + 1) & mask ) {
+            if ( e.hash == h && equals( e.term, buf, start, length )) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+
+    /** The hash code of String, spread so that the low bits can be used as slot. */
+    private static int hash( char[] buf, int start, int length ) {
+        int h = 0;
+        for ( int i=start; i<start+length; i++ ) {
+            h = 31*h + buf[i];
+        }
+        return mix( h );
+    }
+
+
+    private static int hash( String term ) {
+        return mix( term.hashCode() );
+    }
+
+
+    private static int mix( int h ) {
+        h *= 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+
+    private static boolean equals( String term, char[] buf, int start, int length ) {
+        if ( term.length() != length ) {
+            return false;
+        }
+        for ( int i=0; i<length; i++ ) {
+            if ( term.charAt( i ) != buf[start+i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
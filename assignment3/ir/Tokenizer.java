@@ -9,14 +9,9 @@ package ir;
 
 import java.io.Reader;
 import java.io.IOException;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.List;
-import java.util.Arrays;
-import java.util.ArrayList;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
-import java.util.regex.PatternSyntaxException;
 import java.lang.System;
 
 
@@ -65,14 +60,47 @@ public class Tokenizer {
     /** Starting position of current token, or -1 if we're between tokens. */
     int token_start = -1;
 
-    /** The next tokens to emit. */
-    ArrayList<String> token_queue = new ArrayList<String>();
+    /** 
+     *  The next tokens to emit, as ranges of @code{buf}. The queue is a
+     *  ring buffer: token i (counting from the head) starts at
+     *  @code{queue_start[(queue_head+i) % queue_start.length]}.
+     */
+    int[] queue_start = new int[16];
+    int[] queue_length = new int[16];
+    int queue_head = 0;
+    int queue_size = 0;
+
+    /** The range of the token last returned by nextTokenRange(). */
+    int current_start, current_length;
 
     /** @code{true} if we've started reading tokens. */
     boolean started_reading = false;
 
     /** The patterns matching non-standard words (e-mail addresses, etc.) */
-    ArrayList<Pattern> patterns = null;
+    List<Pattern> patterns = null;
+
+    /** One reusable matcher per pattern, matching on @code{chunk}. */
+    Matcher[] matchers = null;
+
+    /** 
+     *  Which pattern matches a chunk, and where, only depends on the
+     *  characters of the chunk, and the same chunks (words) occur over and
+     *  over again. The results are therefore cached in a direct-mapped
+     *  table of MATCH_CACHE_SIZE chunks, indexed by the hash of the chunk.
+     */
+    static final int MATCH_CACHE_SIZE = 4096;
+
+    /** Longer chunks are not cached. */
+    static final int MAX_CACHED_CHUNK = 64;
+
+    String[] cache_chunk = null;
+    int[] cache_pattern, cache_start, cache_end;
+
+    /** The position of the match found by findPattern(), relative to the chunk. */
+    int match_start, match_end;
+
+    /** The chunk of @code{buf} the patterns are matched against. */
+    CharRange chunk = new CharRange();
 
     /** Special characters (with diacritics) can be translated into these characters. */
     public static final char[] SPECIAL_CHAR_MAPPING = {
@@ -95,12 +123,53 @@ public class Tokenizer {
      *         for non-standard words (like dates, mail addresses, etc.).
      */
     public Tokenizer( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, String pattern_file ) {
+        this( reader, case_folding, remove_diacritics, remove_punctuation, TokenizerConfig.forFile( pattern_file ));
+    }
+
+
+    /**
+     *  Constructor taking an already loaded patterns configuration.
+     */
+    public Tokenizer( Reader reader, boolean case_folding, boolean remove_diacritics, boolean remove_punctuation, TokenizerConfig config ) {
         this.reader = reader;
         this.case_folding = case_folding;
         this.remove_diacritics = remove_diacritics;
         this.remove_punctuation = remove_punctuation;
-        if ( pattern_file != null ) {
-            readPatterns( pattern_file );
+        patterns = config.patterns;
+        if ( patterns != null ) {
+            matchers = new Matcher[patterns.size()];
+            for ( int i=0; i<matchers.length; i++ ) {
+                matchers[i] = patterns.get( i ).matcher( chunk );
+            }
+            cache_chunk = new String[MATCH_CACHE_SIZE];
+            cache_pattern = new int[MATCH_CACHE_SIZE];
+            cache_start = new int[MATCH_CACHE_SIZE];
+            cache_end = new int[MATCH_CACHE_SIZE];
+        }
+    }
+
+
+    /**
+     *  A range of @code{buf} seen as a CharSequence, so the patterns can
+     *  be matched without copying the characters into a String.
+     */
+    class CharRange implements CharSequence {
+        int start, end;
+
+        public int length() {
+            return end - start;
+        }
+
+        public char charAt( int i ) {
+            return buf[start+i];
+        }
+
+        public CharSequence subSequence( int from, int to ) {
+            return new String( buf, start+from, to-from );
+        }
+
+        public String toString() {
+            return new String( buf, start, end-start );
         }
     }
 
@@ -122,26 +191,17 @@ public class Tokenizer {
 
 
     /**
-     *  Read the patterns that match non-standard words  
+     *  Starts tokenizing a new text with this tokenizer, so that the
+     *  buffer and the compiled patterns can be reused.
      */
-    private void readPatterns( String filename ) {
-        patterns = new ArrayList<Pattern>();
-        String line = null;
-        try {
-            BufferedReader in = new BufferedReader( new FileReader( filename ));
-            while (( line = in.readLine()) != null ) {
-                line = line.trim();
-                if ( !line.startsWith( "//" ) && line.length() > 0 ) {
-                    patterns.add( Pattern.compile( line ));
-                }
-            }
-        }
-        catch ( IOException e ) {
-            System.err.println( "Warning: IOException reading the regular expressions from file" );
-        }
-        catch ( PatternSyntaxException e ) {
-            System.err.println( "ERROR: Malformed regular expression: " + line );
-        }
+    public void reset( Reader reader ) {
+        this.reader = reader;
+        ptr = 0;
+        token_start = -1;
+        queue_head = 0;
+        queue_size = 0;
+        started_reading = false;
+        buf[0] = 0;
     }
 
 
@@ -186,7 +246,7 @@ public class Tokenizer {
             readTokens();
             started_reading = true;
         }
-        if ( token_queue.size() == 0 ) 
+        if ( queue_size == 0 ) 
             return readTokens();
         else 
             return true;
@@ -198,20 +258,78 @@ public class Tokenizer {
      *  are no more tokens.
      */
     public String nextToken() throws IOException { 
-        if ( token_queue.size() == 0 ) {
-            if ( readTokens() )
-                return token_queue.remove( 0 );
-            else
-                return null;
+        if ( !nextTokenRange() ) {
+            return null;
+        }
+        return new String( buf, current_start, current_length );
+    }
+
+
+    /**
+     *  Advances to the next token without creating a String for it. The
+     *  token is then found in @code{getBuffer()} from @code{tokenStart()},
+     *  @code{tokenLength()} characters long. The range is only valid until
+     *  the next call to hasMoreTokens(), nextToken() or nextTokenRange().
+     *
+     *  @return @code{false} if there are no more tokens.
+     */
+    public boolean nextTokenRange() throws IOException {
+        if ( queue_size == 0 && !readTokens() ) {
+            return false;
         }
-        else {
-            return token_queue.remove( 0 );
+        int i = queue_head;
+        current_start = queue_start[i];
+        current_length = queue_length[i];
+        queue_head = (i+1) % queue_start.length;
+        queue_size--;
+        return true;
+    }
+
+
+    /** The buffer holding the current token. */
+    public char[] getBuffer() {
+        return buf;
+    }
+
+    /** The start of the current token in the buffer. */
+    public int tokenStart() {
+        return current_start;
+    }
+
+    /** The length of the current token. */
+    public int tokenLength() {
+        return current_length;
+    }
+
+
+    /**
+     *  Adds the token at @code{buf[start..start+length)} to the queue.
+     */
+    private void enqueue( int start, int length ) {
+        if ( queue_size == queue_start.length ) {
+            // Full: grow, unrolling the ring so the head is at 0
+            int n = queue_start.length;
+            int[] new_start = new int[2*n];
+            int[] new_length = new int[2*n];
+            for ( int i=0; i<n; i++ ) {
+                new_start[i] = queue_start[(queue_head+i) % n];
+                new_length[i] = queue_length[(queue_head+i) % n];
+            }
+            queue_start = new_start;
+            queue_length = new_length;
+            queue_head = 0;
         }
+        int tail = (queue_head+queue_size) % queue_start.length;
+        queue_start[tail] = start;
+        queue_length[tail] = length;
+        queue_size++;
     }
 
 
     /**
-     *  Reads the next token. 
+     *  Reads the next token. The queued tokens point into the buffer, so
+     *  the buffer is only refilled at the start of the next call, when
+     *  the queue has been emptied.
      */ 
     private boolean readTokens() throws IOException {
         if ( !started_reading ) {
@@ -219,7 +337,26 @@ public class Tokenizer {
             started_reading = true;
         }
         boolean token_added_to_queue = false;
-        while ( buf[ptr] != 0 ) {
+        while ( true ) {
+            if ( ptr == BUFFER_LENGTH ) {
+                // The buffer has been read, so refill it
+                if ( token_start >= 0 ) {
+                    // We're in the middle of a token. Copy the parts
+                    // of the token we have read already into the 
+                    // beginning of the buffer.
+                    System.arraycopy( buf, token_start, buf, 0, BUFFER_LENGTH-token_start );
+                    refillBuffer( BUFFER_LENGTH-token_start );
+                    ptr = BUFFER_LENGTH-token_start;
+                    token_start = 0;
+                }
+                else {
+                    refillBuffer( 0 );
+                    ptr = 0;
+                }
+            }
+            if ( buf[ptr] == 0 ) {
+                break;
+            }
             if ( token_start < 0 ) {
                 if ( normalize( buf, ptr )) {
                     // A token starts here
@@ -239,22 +376,6 @@ public class Tokenizer {
                     ptr++;
                 }
             }
-            if ( ptr == BUFFER_LENGTH ) {
-                // The buffer has been read, so refill it
-                if ( token_start >= 0 ) {
-                    // We're in the middle of a token. Copy the parts
-                    // of the token we have read already into the 
-                    // beginning of the buffer.
-                    System.arraycopy( buf, token_start, buf, 0, BUFFER_LENGTH-token_start );
-                    refillBuffer( BUFFER_LENGTH-token_start );
-                    ptr = BUFFER_LENGTH-token_start;
-                    token_start = 0;
-                }
-                else {
-                    refillBuffer( 0 );
-                    ptr = 0;
-                }
-            }
             if ( token_added_to_queue ) {
                 return true;
             }
@@ -271,63 +392,119 @@ public class Tokenizer {
         if ( token_start < 0 ) {
             return false;
         }
-        String s = new String( buf, token_start, ptr-token_start );
-        if ( patterns != null ) {
-            // Now let's see if the string s matches one of the patterns 
+        if ( matchers != null ) {
+            // Now let's see if the chunk matches one of the patterns 
             // for non-standard words
-            for ( Pattern p : patterns ) {
-                Matcher m = p.matcher( s );
-                if ( m.find() ) {
-                    // The string contains a non-standard word. First check the prefix 
-                    // before the matching substring, then add the non-standard word  
-                    // to the token queue, then check the remainder of the string.
-                    addStandardTokensToQueue( s.substring(0, m.start() ));
-                    token_queue.add( m.group() );
-                    token_start += m.end();
-                    addTokensToQueue();
-                    return true;
-                }
+            chunk.start = token_start;
+            chunk.end = ptr;
+            int k = findPattern();
+            if ( k >= 0 ) {
+                // The chunk contains a non-standard word. First check the prefix 
+                // before the matching substring, then add the non-standard word  
+                // to the token queue, then check the remainder of the chunk.
+                int start = token_start + match_start;
+                int end = token_start + match_end;
+                addStandardTokensToQueue( token_start, start );
+                enqueue( start, end-start );
+                token_start = end;
+                addTokensToQueue();
+                return true;
             }
         }
-        // This string contains only standard words
-        return addStandardTokensToQueue( s );
+        // This chunk contains only standard words
+        return addStandardTokensToQueue( token_start, ptr );
+    }
+
+
+    /**
+     *  Finds the first pattern (in file order) that occurs in the chunk,
+     *  and sets @code{match_start} and @code{match_end} to its first
+     *  occurrence.
+     *
+     *  @return the number of the pattern, or -1 if no pattern occurs.
+     */
+    private int findPattern() {
+        int length = chunk.length();
+        if ( length > MAX_CACHED_CHUNK ) {
+            return matchPatterns();
+        }
+        int h = 0;
+        for ( int i=chunk.start; i<chunk.end; i++ ) {
+            h = 31*h + buf[i];
+        }
+        int slot = (h ^ (h >>> 12)) & (MATCH_CACHE_SIZE-1);
+        String cached = cache_chunk[slot];
+        if ( cached != null && cached.length() == length && chunkEquals( cached )) {
+            match_start = cache_start[slot];
+            match_end = cache_end[slot];
+            return cache_pattern[slot];
+        }
+        int k = matchPatterns();
+        cache_chunk[slot] = chunk.toString();
+        cache_pattern[slot] = k;
+        cache_start[slot] = match_start;
+        cache_end[slot] = match_end;
+        return k;
+    }
+
+
+    /**
+     *  Tries the patterns in order on the chunk, as findPattern() but
+     *  without the cache.
+     */
+    private int matchPatterns() {
+        for ( int k=0; k<matchers.length; k++ ) {
+            Matcher m = matchers[k];
+            m.reset();
+            if ( m.find() ) {
+                match_start = m.start();
+                match_end = m.end();
+                return k;
+            }
+        }
+        return -1;
+    }
+
+
+    private boolean chunkEquals( String s ) {
+        for ( int i=0; i<s.length(); i++ ) {
+            if ( s.charAt( i ) != buf[chunk.start+i] ) {
+                return false;
+            }
+        }
+        return true;
     }
 
 
     /**
      *  Adds standard tokens (i.e. tokens not matching any regular
-     *  expression) to the queue.
+     *  expression) in @code{buf[start..end)} to the queue.
      */
-    private boolean addStandardTokensToQueue( String s ) {
-        // This string s does not match any specific pattern.
+    private boolean addStandardTokensToQueue( int start, int end ) {
+        // This chunk does not match any specific pattern.
         // Then split it, considering all punctuation symbols
         // to be separators.
         boolean tokens_found = false;
-        StringBuffer smallbuf = new StringBuffer();
-        for ( int i=0; i<s.length(); i++ ) {
-            if ( punctuation( s.charAt( i ))) {
-                // The string before the punctuation sign is a token
+        int t = start;
+        for ( int i=start; i<end; i++ ) {
+            if ( punctuation( buf[i] )) {
+                // The chunk before the punctuation sign is a token
                 // unless it is empty
-                String t = smallbuf.toString();
-                if ( t.length()>0 ) {
-                    token_queue.add( t );
-                    smallbuf = new StringBuffer();
+                if ( i>t ) {
+                    enqueue( t, i-t );
                     tokens_found = true;
                 }
                 if ( !remove_punctuation ) {
-                    token_queue.add( "" + s.charAt( i ));
+                    enqueue( i, 1 );
                     tokens_found = true;
                 }
-            }
-            else {
-                smallbuf.append( s.charAt( i ));
+                t = i+1;
             }
         }
-        // The string after the last punctuation sign is a token
+        // The chunk after the last punctuation sign is a token
         // unless it is empty
-        String t = smallbuf.toString();
-        if ( t.length()>0 ) {
-            token_queue.add( t );
+        if ( end>t ) {
+            enqueue( t, end-t );
             tokens_found = true;
         }   
         return tokens_found;
@@ -0,0 +1,81 @@
+package ir;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+
+/**
+ *   The compiled patterns for non-standard words of one patterns file.
+ *
+ *   Each file is read and compiled only once; all tokenizers using the
+ *   same file share its configuration. A configuration never changes
+ *   after it has been loaded, and compiled Patterns are thread-safe, so
+ *   it can be used from any number of threads.
+ */
+public class TokenizerConfig {
+
+    /** The configurations loaded so far, by file name. */
+    private static final ConcurrentHashMap<String,TokenizerConfig> configs = new ConcurrentHashMap<String,TokenizerConfig>();
+
+    /** The configuration without patterns. */
+    public static final TokenizerConfig NONE = new TokenizerConfig( null );
+
+    /** The patterns in the order of the file, or null if there are none. */
+    final List<Pattern> patterns;
+
+
+    /* ----------------------------------------------- */
+
+
+    private TokenizerConfig( List<Pattern> patterns ) {
+        this.patterns = patterns == null ? null : Collections.unmodifiableList( patterns );
+    }
+
+
+    /**
+     *  Returns the configuration for the given patterns file, reading it
+     *  the first time. If <code>pattern_file</code> is null, NONE is returned.
+     */
+    public static TokenizerConfig forFile( String pattern_file ) {
+        if ( pattern_file == null ) {
+            return NONE;
+        }
+        return configs.computeIfAbsent( pattern_file, TokenizerConfig::readPatterns );
+    }
+
+
+    /**
+     *  Read the patterns that match non-standard words
+     */
+    private static TokenizerConfig readPatterns( String filename ) {
+        ArrayList<Pattern> patterns = new ArrayList<Pattern>();
+        String line = null;
+        try {
+            BufferedReader in = new BufferedReader( new FileReader( filename ));
+            try {
+                while (( line = in.readLine()) != null ) {
+                    line = line.trim();
+                    if ( !line.startsWith( "//" ) && line.length() > 0 ) {
+                        patterns.add( Pattern.compile( line ));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        catch ( IOException e ) {
+            System.err.println( "Warning: IOException reading the regular expressions from file" );
+        }
+        catch ( PatternSyntaxException e ) {
+            System.err.println( "ERROR: Malformed regular expression: " + line );
+        }
+        return new TokenizerConfig( patterns );
+    }
+}
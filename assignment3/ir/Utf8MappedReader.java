@@ -0,0 +1,116 @@
+package ir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ *   Reads a UTF-8 encoded file as characters, like an InputStreamReader,
+ *   but without going through an InputStream.
+ *
+ *   Large files are memory-mapped, smaller ones are read into memory in
+ *   one go. ASCII bytes are copied straight into the caller's buffer;
+ *   only runs of non-ASCII bytes are passed to the UTF-8 decoder, so the
+ *   characters produced (including the replacement of malformed input)
+ *   are the same as with InputStreamReader.
+ */
+public class Utf8MappedReader extends Reader {
+
+    /** Files at least this large are memory-mapped. */
+    static final long MAP_THRESHOLD = 256 * 1024;
+
+    /** The bytes of the file. */
+    ByteBuffer in;
+
+    /** Decoder for the non-ASCII runs. */
+    CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+        .onMalformedInput( CodingErrorAction.REPLACE )
+        .onUnmappableCharacter( CodingErrorAction.REPLACE );
+
+    /** The second half of a surrogate pair that did not fit in the caller's buffer. */
+    CharBuffer pending = CharBuffer.allocate( 2 );
+
+
+    /* ----------------------------------------------- */
+
+
+    public Utf8MappedReader( File f ) throws IOException {
+        try ( FileChannel channel = new RandomAccessFile( f, "r" ).getChannel() ) {
+            long size = channel.size();
+            if ( size >= MAP_THRESHOLD ) {
+                in = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+            } else {
+                in = ByteBuffer.allocate( (int)size );
+                while ( in.hasRemaining() && channel.read( in ) >= 0 ) {
+                }
+                in.flip();
+            }
+        }
+        pending.flip();
+    }
+
+
+    /**
+     *  Reads up to <code>len</code> characters into <code>cbuf</code>.
+     *
+     *  @return the number of characters read, or -1 at end of file.
+     */
+    public int read( char[] cbuf, int off, int len ) throws IOException {
+        if ( in == null ) {
+            throw new IOException( "Reader closed" );
+        }
+        if ( len == 0 ) {
+            return 0;
+        }
+        int n = 0;
+        if ( pending.hasRemaining() ) {
+            cbuf[off+n++] = pending.get();
+        }
+        int pos = in.position();
+        int limit = in.limit();
+        while ( n < len && pos < limit ) {
+            byte b = in.get( pos );
+            if ( b >= 0 ) {
+                // ASCII
+                cbuf[off+n++] = (char)b;
+                pos++;
+                continue;
+            }
+            // Decode the run of non-ASCII bytes. An ASCII byte is never
+            // part of a multibyte sequence, so the run can be decoded on its own.
+            int end = pos + 1;
+            while ( end < limit && in.get( end ) < 0 ) {
+                end++;
+            }
+            ByteBuffer run = in.duplicate();
+            run.limit( end ).position( pos );
+            CharBuffer out = CharBuffer.wrap( cbuf, off+n, len-n );
+            decoder.reset();
+            CoderResult result = decoder.decode( run, out, true );
+            if ( result.isOverflow() && out.position() == off+n ) {
+                // Only room for one char, and the next one is a surrogate pair
+                pending.clear();
+                decoder.reset();
+                decoder.decode( run, pending, true );
+                pending.flip();
+                cbuf[off+n] = pending.get();
+                out.position( off+n+1 );
+            }
+            n = out.position() - off;
+            pos = run.position();
+        }
+        in.position( pos );
+        return n == 0 ? -1 : n;
+    }
+
+
+    public void close() {
+        in = null;
+    }
+}
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes -Xmx1g ir.BatchSearch -d ./davisWiki -p patterns.txt -q batch_queries.txt -t 4 -n 10
@@ -0,0 +1,2 @@
+#!/bin/sh
+java -cp classes -Xmx4g ir.ParallelPageRank "$@"